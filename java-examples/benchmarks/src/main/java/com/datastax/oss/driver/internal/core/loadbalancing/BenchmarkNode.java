@@ -0,0 +1,109 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.datastax.oss.driver.internal.core.loadbalancing;
+
+import com.datastax.oss.driver.api.core.Version;
+import com.datastax.oss.driver.api.core.loadbalancing.NodeDistance;
+import com.datastax.oss.driver.api.core.metadata.EndPoint;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.api.core.metadata.NodeState;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * A minimal node that is always UP in the local datacenter. Unlike a mock, it has no overhead on
+ * the benchmarked code paths (hashCode and equals are the identity ones, as for the driver's nodes).
+ */
+class BenchmarkNode implements Node {
+
+  private final UUID hostId = UUID.randomUUID();
+  private final String datacenter;
+
+  BenchmarkNode(String datacenter) {
+    this.datacenter = datacenter;
+  }
+
+  @Override
+  public EndPoint getEndPoint() {
+    return null;
+  }
+
+  @Override
+  public Optional<InetSocketAddress> getBroadcastRpcAddress() {
+    return Optional.empty();
+  }
+
+  @Override
+  public Optional<InetSocketAddress> getBroadcastAddress() {
+    return Optional.empty();
+  }
+
+  @Override
+  public Optional<InetSocketAddress> getListenAddress() {
+    return Optional.empty();
+  }
+
+  @Override
+  public String getDatacenter() {
+    return datacenter;
+  }
+
+  @Override
+  public String getRack() {
+    return null;
+  }
+
+  @Override
+  public Version getCassandraVersion() {
+    return null;
+  }
+
+  @Override
+  public Map<String, Object> getExtras() {
+    return Collections.emptyMap();
+  }
+
+  @Override
+  public NodeState getState() {
+    return NodeState.UP;
+  }
+
+  @Override
+  public long getUpSinceMillis() {
+    return 0;
+  }
+
+  @Override
+  public int getOpenConnections() {
+    return 1;
+  }
+
+  @Override
+  public boolean isReconnecting() {
+    return false;
+  }
+
+  @Override
+  public NodeDistance getDistance() {
+    return NodeDistance.LOCAL;
+  }
+
+  @Override
+  public UUID getHostId() {
+    return hostId;
+  }
+
+  @Override
+  public UUID getSchemaVersion() {
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return "BenchmarkNode(" + hostId + ")";
+  }
+}
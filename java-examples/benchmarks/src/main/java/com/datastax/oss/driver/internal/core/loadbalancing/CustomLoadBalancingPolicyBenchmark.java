@@ -0,0 +1,178 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.datastax.oss.driver.internal.core.loadbalancing;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.datastax.dse.driver.internal.core.tracker.MultiplexingRequestTracker;
+import com.datastax.oss.driver.api.core.ConsistencyLevel;
+import com.datastax.oss.driver.api.core.config.DriverConfig;
+import com.datastax.oss.driver.api.core.config.DriverExecutionProfile;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.api.core.session.Request;
+import com.datastax.oss.driver.api.core.session.Session;
+import com.datastax.oss.driver.internal.core.ConsistencyLevelRegistry;
+import com.datastax.oss.driver.internal.core.context.EventBus;
+import com.datastax.oss.driver.internal.core.context.InternalDriverContext;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the routing hot path of {@link CustomLoadBalancingPolicy}: building a query plan, and
+ * recording a response.
+ *
+ * <p>The local datacenter has twice as many nodes as there are replicas, so that the round-robin
+ * of the non-replicas is exercised too. Run with {@code -prof gc} to report allocation rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CustomLoadBalancingPolicyBenchmark {
+
+  private static final String LOCAL_DC = "dc1";
+  private static final int BUSY_IN_FLIGHT = 20;
+
+  public enum HealthMix {
+    /** All replicas have few in-flight requests and recent responses. */
+    ALL_HEALTHY,
+    /** One replica is busy and has stopped responding: it gets moved to the back of the plan. */
+    ONE_UNHEALTHY,
+    /** Most replicas are unhealthy: the plan is not reordered. */
+    MAJORITY_UNHEALTHY,
+  }
+
+  @Param({"3", "6", "12", "30"})
+  public int replicas;
+
+  @Param({"ALL_HEALTHY", "ONE_UNHEALTHY", "MAJORITY_UNHEALTHY"})
+  public HealthMix healthMix;
+
+  private BenchmarkLoadBalancingPolicy policy;
+  private Session session;
+  private Node respondingNode;
+
+  @Setup
+  public void setup() {
+    InternalDriverContext context = mock(InternalDriverContext.class);
+    DriverConfig config = mock(DriverConfig.class);
+    // no option is defined, so the policy gets the defaults it passes to getXxx(option, default)
+    DriverExecutionProfile profile =
+        mock(DriverExecutionProfile.class, withSettings().defaultAnswer(CALLS_REAL_METHODS));
+    ConsistencyLevelRegistry consistencyLevels = mock(ConsistencyLevelRegistry.class);
+    when(context.getConfig()).thenReturn(config);
+    when(config.getProfile(anyString())).thenReturn(profile);
+    when(context.getSessionName()).thenReturn("benchmark");
+    when(context.getConsistencyLevelRegistry()).thenReturn(consistencyLevels);
+    when(consistencyLevels.nameToLevel(any())).thenReturn(ConsistencyLevel.LOCAL_ONE);
+    when(context.getRequestTracker()).thenReturn(new MultiplexingRequestTracker());
+    when(context.getEventBus()).thenReturn(new EventBus("benchmark"));
+    session = mock(Session.class);
+
+    Map<UUID, Node> nodes = new LinkedHashMap<>();
+    Set<Node> replicaSet = new LinkedHashSet<>();
+    for (int i = 0; i < replicas * 2; i++) {
+      Node node = new BenchmarkNode(LOCAL_DC);
+      nodes.put(node.getHostId(), node);
+      if (i < replicas) {
+        replicaSet.add(node);
+      }
+    }
+    policy = new BenchmarkLoadBalancingPolicy(context, replicaSet);
+    policy.init(nodes, (node, distance) -> {});
+
+    int unhealthy;
+    switch (healthMix) {
+      case ONE_UNHEALTHY:
+        unhealthy = 1;
+        break;
+      case MAJORITY_UNHEALTHY:
+        unhealthy = replicas / 2 + 1;
+        break;
+      default:
+        unhealthy = 0;
+    }
+    int i = 0;
+    for (Node replica : replicaSet) {
+      if (i >= unhealthy) {
+        policy.onNodeSuccess(null, TimeUnit.MILLISECONDS.toNanos(2), null, replica, "");
+        policy.onNodeSuccess(null, TimeUnit.MILLISECONDS.toNanos(2), null, replica, "");
+        respondingNode = replica;
+      }
+      // counted as if the plans had sent them, after the responses that uncount them
+      int inFlight = i < unhealthy ? BUSY_IN_FLIGHT : i % 5;
+      for (int j = 0; j < inFlight; j++) {
+        policy.inFlightCounters.increment(replica, System.nanoTime());
+      }
+      i++;
+    }
+  }
+
+  @Benchmark
+  public Queue<Node> newQueryPlan() {
+    return policy.newQueryPlan(null, session);
+  }
+
+  @Benchmark
+  public void onNodeSuccess() {
+    policy.onNodeSuccess(null, TimeUnit.MILLISECONDS.toNanos(2), null, respondingNode, "");
+  }
+
+  /** The policy, with the parts that need a running session replaced: the replicas are fixed. */
+  static class BenchmarkLoadBalancingPolicy extends CustomLoadBalancingPolicy {
+
+    private final Set<Node> replicas;
+
+    BenchmarkLoadBalancingPolicy(InternalDriverContext context, Set<Node> replicas) {
+      super(context, "default");
+      this.replicas = replicas;
+    }
+
+    @NonNull
+    @Override
+    protected Optional<String> discoverLocalDc(@NonNull Map<UUID, Node> nodes) {
+      return Optional.of(LOCAL_DC);
+    }
+
+    @NonNull
+    @Override
+    protected Predicate<Node> createNodeFilter(
+        @Nullable String localDc, @NonNull Map<UUID, Node> nodes) {
+      return node -> true;
+    }
+
+    @NonNull
+    @Override
+    protected Set<Node> getReplicas(@Nullable Request request, @Nullable Session session) {
+      return replicas;
+    }
+  }
+}
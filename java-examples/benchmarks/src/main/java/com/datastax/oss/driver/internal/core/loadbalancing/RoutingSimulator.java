@@ -0,0 +1,690 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.datastax.oss.driver.internal.core.loadbalancing;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.azure.cassandrami.cluster.NodeBehavior;
+import com.azure.cassandrami.util.LatencyRecorder;
+import com.datastax.dse.driver.internal.core.tracker.MultiplexingRequestTracker;
+import com.datastax.oss.driver.api.core.config.DriverConfig;
+import com.datastax.oss.driver.api.core.config.DriverConfigLoader;
+import com.datastax.oss.driver.api.core.config.DriverExecutionProfile;
+import com.datastax.oss.driver.api.core.connection.ClosedConnectionException;
+import com.datastax.oss.driver.api.core.cql.SimpleStatement;
+import com.datastax.oss.driver.api.core.loadbalancing.LoadBalancingPolicy;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.api.core.session.Request;
+import com.datastax.oss.driver.api.core.session.Session;
+import com.datastax.oss.driver.api.core.tracker.RequestTracker;
+import com.datastax.oss.driver.internal.core.DefaultConsistencyLevelRegistry;
+import com.datastax.oss.driver.internal.core.context.EventBus;
+import com.datastax.oss.driver.internal.core.context.InternalDriverContext;
+import com.datastax.oss.driver.internal.core.metrics.MetricsFactory;
+import com.datastax.oss.driver.internal.core.util.ArrayUtils;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import org.HdrHistogram.Histogram;
+
+/**
+ * A discrete-event simulation of many clients sending requests to the nodes of a cluster, to
+ * compare load balancing policies without a cluster or a network: the real {@link
+ * BasicLoadBalancingPolicy} and {@link CustomLoadBalancingPolicy} build the query plans and get the
+ * response feedback, against a virtual clock.
+ *
+ * <p>Each client sends a request for a random partition, waits for the response, then thinks for
+ * an exponentially distributed time before sending the next one. A request goes to the first node
+ * of its query plan, and to the next one if that node is down (or goes down while processing it).
+ * Each node serves {@code concurrency} requests at a time, the others waiting in its queue, with
+ * the service times, GC pauses and restarts of a {@link NodeBehavior}. The network adds a constant
+ * delay each way.
+ *
+ * <p>The arguments are {@code key=value} pairs, overriding the {@link #DEFAULTS}. The node
+ * settings are space- or comma-separated lists, the last value applying to the remaining nodes.
+ * {@code policy} can be repeated, to compare several policies under the same load: its value is
+ * {@code basic} or {@code custom}, optionally followed by {@code :} and HOCON settings of the
+ * {@code basic.load-balancing-policy} section for that run, for example:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar \
+ *   com.datastax.oss.driver.internal.core.loadbalancing.RoutingSimulator \
+ *   nodes=30 clients=5000 latencyMillis=20,2 policy=basic policy=custom \
+ *   "policy=custom:health.slow-latency-ratio=2,health.in-flight-threshold=20"
+ * </pre>
+ *
+ * <p>The simulation is single-threaded and deterministic: the same arguments give the same
+ * results. It processes about 200,000 simulated requests per second of wall time, most of it
+ * spent in the policies themselves, so simulating the default load of about 1.3 million requests
+ * per second with {@code custom} takes about 5 times the simulated duration; fewer {@code
+ * clients} or a shorter {@code durationSeconds} give quicker runs.
+ */
+public class RoutingSimulator {
+
+  private static final String LOCAL_DC = "dc1";
+  private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(5);
+  private static final Throwable NODE_DOWN_ERROR =
+      new ClosedConnectionException("Simulated node went down");
+  // a statement, whose responses the policies expect to be tracked; its content is ignored
+  private static final Request SIMULATED_REQUEST = SimpleStatement.newInstance("SELECT 1");
+
+  private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+  static {
+    DEFAULTS.put("nodes", "30");
+    // replicas of each partition (consecutive nodes on the ring)
+    DEFAULTS.put("rf", "3");
+    // with the defaults, up to 1.3 million requests per second of simulated time
+    DEFAULTS.put("clients", "8000");
+    // mean think time of a client between a response and its next request
+    DEFAULTS.put("thinkMillis", "5");
+    // requests processed at the same time by a node (as Cassandra's native transport threads)
+    DEFAULTS.put("concurrency", "128");
+    // one-way network delay
+    DEFAULTS.put("networkMicros", "100");
+    // per-node settings of NodeBehavior (by default, the first node is slow)
+    DEFAULTS.put("latencyMillis", "10,1");
+    DEFAULTS.put("latencySigma", "0.5");
+    DEFAULTS.put("stallRate", "0");
+    DEFAULTS.put("stallMillis", "200");
+    DEFAULTS.put("gcIntervalSeconds", "0");
+    DEFAULTS.put("gcPauseMillis", "300");
+    DEFAULTS.put("flapIntervalSeconds", "0");
+    DEFAULTS.put("flapDownSeconds", "5");
+    // simulated time; the latencies and loads of the warmup are not reported
+    DEFAULTS.put("durationSeconds", "5");
+    DEFAULTS.put("warmupSeconds", "1");
+    DEFAULTS.put("seed", "1");
+  }
+
+  public static void main(String[] args) {
+    Map<String, String> values = new LinkedHashMap<>(DEFAULTS);
+    List<String> policies = new ArrayList<>();
+    for (String arg : args) {
+      int separator = arg.indexOf('=');
+      String key = separator < 0 ? arg : arg.substring(0, separator);
+      if (key.equals("policy")) {
+        policies.add(arg.substring(separator + 1).trim());
+      } else if (separator > 0 && DEFAULTS.containsKey(key)) {
+        values.put(key, arg.substring(separator + 1).trim());
+      } else {
+        throw new IllegalArgumentException(
+            "Invalid argument " + arg + ", expected policy=... or one of " + DEFAULTS.keySet());
+      }
+    }
+    if (policies.isEmpty()) {
+      policies = Arrays.asList("basic", "custom");
+    }
+    Settings settings = new Settings(values);
+    System.out.println("Settings: " + values);
+    settings.printBehaviors();
+
+    List<Simulation> simulations = new ArrayList<>();
+    for (String policy : policies) {
+      Simulation simulation = new Simulation(settings, policy);
+      simulation.run();
+      simulation.printSummary(simulations.size() + 1);
+      simulations.add(simulation);
+    }
+    printNodeLoads(settings, simulations);
+  }
+
+  /** Side by side, for each policy: the share of the requests served, and the utilization. */
+  private static void printNodeLoads(Settings settings, List<Simulation> simulations) {
+    System.out.println();
+    System.out.println("Per-node load: share of the requests served, utilization of the slots");
+    StringBuilder header = new StringBuilder("node");
+    for (int i = 0; i < simulations.size(); i++) {
+      header.append(String.format("  %14s", "[" + (i + 1) + "]"));
+    }
+    System.out.println(header);
+    for (int node = 0; node < settings.nodes; node++) {
+      StringBuilder line = new StringBuilder(String.format("%4d", node));
+      for (Simulation simulation : simulations) {
+        line.append(
+            String.format(
+                "  %6.2f%% %5.1f%%",
+                simulation.getShare(node) * 100, simulation.getUtilization(node) * 100));
+      }
+      System.out.println(line);
+    }
+  }
+
+  /** The parsed arguments, shared by the simulations of all the policies. */
+  private static class Settings {
+
+    final int nodes;
+    final int replicationFactor;
+    final int clients;
+    final long thinkNanos;
+    final int concurrency;
+    final long networkNanos;
+    final long durationNanos;
+    final long warmupNanos;
+    final long seed;
+    final List<NodeBehavior> behaviors = new ArrayList<>();
+
+    Settings(Map<String, String> values) {
+      this.nodes = Integer.parseInt(values.get("nodes"));
+      this.replicationFactor = Integer.parseInt(values.get("rf"));
+      this.clients = Integer.parseInt(values.get("clients"));
+      this.thinkNanos = (long) (Double.parseDouble(values.get("thinkMillis")) * 1e6);
+      this.concurrency = Integer.parseInt(values.get("concurrency"));
+      this.networkNanos =
+          TimeUnit.MICROSECONDS.toNanos(Long.parseLong(values.get("networkMicros")));
+      this.durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(values.get("durationSeconds")));
+      this.warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(values.get("warmupSeconds")));
+      this.seed = Long.parseLong(values.get("seed"));
+      if (nodes < 1
+          || replicationFactor < 1
+          || replicationFactor > nodes
+          || clients < 1
+          || concurrency < 1
+          || warmupNanos >= durationNanos) {
+        throw new IllegalArgumentException("Invalid simulation settings " + values);
+      }
+      String[] latency = split(values.get("latencyMillis"));
+      String[] sigma = split(values.get("latencySigma"));
+      String[] stallRate = split(values.get("stallRate"));
+      String[] stallMillis = split(values.get("stallMillis"));
+      String[] gcInterval = split(values.get("gcIntervalSeconds"));
+      String[] gcPause = split(values.get("gcPauseMillis"));
+      String[] flapInterval = split(values.get("flapIntervalSeconds"));
+      String[] flapDown = split(values.get("flapDownSeconds"));
+      for (int i = 0; i < nodes; i++) {
+        behaviors.add(
+            new NodeBehavior(
+                Double.parseDouble(value(latency, i)),
+                Double.parseDouble(value(sigma, i)),
+                Double.parseDouble(value(stallRate, i)),
+                Long.parseLong(value(stallMillis, i)),
+                Long.parseLong(value(gcInterval, i)),
+                Long.parseLong(value(gcPause, i)),
+                Long.parseLong(value(flapInterval, i)),
+                Long.parseLong(value(flapDown, i))));
+      }
+    }
+
+    /** Print the behaviors, grouping the consecutive nodes that behave the same. */
+    void printBehaviors() {
+      int first = 0;
+      for (int i = 1; i <= nodes; i++) {
+        String behavior = behaviors.get(first).toString();
+        if (i == nodes || !behaviors.get(i).toString().equals(behavior)) {
+          String range = first == i - 1 ? "node " + first : "nodes " + first + "-" + (i - 1);
+          System.out.println(range + ": " + behavior);
+          first = i;
+        }
+      }
+    }
+
+    private static String[] split(String values) {
+      return values.trim().split("[,\\s]+");
+    }
+
+    private static String value(String[] values, int node) {
+      return values[Math.min(node, values.length - 1)];
+    }
+  }
+
+  /** A simulated node, with its queue of requests. */
+  private static class SimulatedNode extends BenchmarkNode {
+
+    final int index;
+    final NodeBehavior behavior;
+    final Random random;
+    // the GC pauses and restarts of the nodes are spread over their interval
+    final double phase;
+    final Call[] slots;
+    final int[] freeSlots;
+    int freeSlotCount;
+    final Queue<Call> queue = new ArrayDeque<>();
+    boolean down;
+
+    // measured after the warmup
+    long served;
+    long busyNanos;
+
+    SimulatedNode(int index, Settings settings) {
+      super(LOCAL_DC);
+      this.index = index;
+      this.behavior = settings.behaviors.get(index);
+      this.random = new Random(settings.seed ^ (index * 0x9E3779B97F4A7C15L));
+      this.phase = (double) index / settings.nodes;
+      this.slots = new Call[settings.concurrency];
+      this.freeSlots = new int[settings.concurrency];
+      for (int i = 0; i < freeSlots.length; i++) {
+        freeSlots[freeSlotCount++] = i;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "SimulatedNode(" + index + ")";
+    }
+  }
+
+  /** The current request of a client. */
+  private static class Call {
+
+    long startNanos;
+    Queue<Node> plan;
+    SimulatedNode node;
+    long attemptNanos;
+    long serviceNanos;
+    int slot;
+    // incremented for each attempt, so that the events of an interrupted attempt are ignored
+    int attempt;
+  }
+
+  private static final int SEND = 0;
+  private static final int ARRIVE = 1;
+  private static final int COMPLETE = 2;
+  private static final int RESPONSE = 3;
+  private static final int FAILED = 4;
+  private static final int NODE_DOWN = 5;
+  private static final int NODE_UP = 6;
+
+  private static class Event implements Comparable<Event> {
+
+    final long time;
+    // orders the events that happen at the same time, so that the simulation is deterministic
+    final long sequence;
+    final int type;
+    final Call call;
+    final int attempt;
+    final SimulatedNode node;
+
+    Event(long time, long sequence, int type, Call call, SimulatedNode node) {
+      this.time = time;
+      this.sequence = sequence;
+      this.type = type;
+      this.call = call;
+      this.attempt = call == null ? 0 : call.attempt;
+      this.node = node;
+    }
+
+    @Override
+    public int compareTo(Event that) {
+      int result = Long.compare(this.time, that.time);
+      return result != 0 ? result : Long.compare(this.sequence, that.sequence);
+    }
+  }
+
+  /** The simulation of one policy. */
+  private static class Simulation {
+
+    private final Settings settings;
+    private final String name;
+    private final SimulatedNode[] nodes;
+    private final List<Set<Node>> replicaSets = new ArrayList<>();
+    private final InternalDriverContext context;
+    private final DriverExecutionProfile profile;
+    private final RequestTracker tracker;
+    private final LoadBalancingPolicy policy;
+    private final Session session = mock(Session.class);
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private final Random random;
+    private final Random policyRandom;
+    private long now;
+    private long sequence;
+    private Set<Node> replicas;
+
+    // measured after the warmup
+    private final Histogram latencies = new Histogram(HIGHEST_TRACKABLE_NANOS, 3);
+    private long retries;
+    private long failures;
+    private long served;
+    private long simulatedRequests;
+    private long wallNanos;
+
+    Simulation(Settings settings, String name) {
+      this.settings = settings;
+      this.name = name;
+      this.random = new Random(settings.seed);
+      this.policyRandom = new Random(~settings.seed);
+
+      Map<UUID, Node> nodeMap = new LinkedHashMap<>();
+      this.nodes = new SimulatedNode[settings.nodes];
+      for (int i = 0; i < settings.nodes; i++) {
+        nodes[i] = new SimulatedNode(i, settings);
+        nodeMap.put(nodes[i].getHostId(), nodes[i]);
+      }
+      for (int i = 0; i < settings.nodes; i++) {
+        Set<Node> replicaSet = new HashSet<>();
+        for (int j = 0; j < settings.replicationFactor; j++) {
+          replicaSet.add(nodes[(i + j) % settings.nodes]);
+        }
+        replicaSets.add(replicaSet);
+      }
+
+      int separator = name.indexOf(':');
+      String kind = separator < 0 ? name : name.substring(0, separator);
+      String overrides = separator < 0 ? "" : name.substring(separator + 1);
+      DriverConfig config =
+          DriverConfigLoader.fromString(
+                  "datastax-java-driver.basic.load-balancing-policy { " + overrides + " }")
+              .getInitialConfig();
+      this.profile = config.getDefaultProfile();
+      this.context = mock(InternalDriverContext.class);
+      MetricsFactory metricsFactory = mock(MetricsFactory.class);
+      when(context.getConfig()).thenReturn(config);
+      when(context.getSessionName()).thenReturn("simulation");
+      when(context.getConsistencyLevelRegistry())
+          .thenReturn(new DefaultConsistencyLevelRegistry());
+      when(context.getRequestTracker()).thenReturn(new MultiplexingRequestTracker());
+      when(context.getEventBus()).thenReturn(new EventBus("simulation"));
+      when(context.getMetricsFactory()).thenReturn(metricsFactory);
+      when(metricsFactory.getMetrics()).thenReturn(Optional.empty());
+      this.tracker = context.getRequestTracker();
+
+      switch (kind) {
+        case "basic":
+          this.policy = new SimulatedBasicPolicy();
+          break;
+        case "custom":
+          this.policy = new SimulatedCustomPolicy();
+          break;
+        default:
+          throw new IllegalArgumentException(
+              "Unknown policy " + kind + ", expected basic or custom");
+      }
+      policy.init(nodeMap, (node, distance) -> {});
+    }
+
+    void run() {
+      long start = System.nanoTime();
+      for (int i = 0; i < settings.clients; i++) {
+        schedule(SEND, thinkTime(), new Call(), null);
+      }
+      for (SimulatedNode node : nodes) {
+        long interval = node.behavior.getFlapIntervalNanos();
+        if (interval > 0) {
+          // the first restart is after a full interval, as for the nodes of SimulatedCluster
+          schedule(NODE_DOWN, (long) ((1 + node.phase) * interval), null, node);
+        }
+      }
+      while (!events.isEmpty() && events.peek().time <= settings.durationNanos) {
+        Event event = events.poll();
+        now = event.time;
+        if (event.call != null && event.attempt != event.call.attempt) {
+          continue;
+        }
+        switch (event.type) {
+          case SEND:
+            send(event.call);
+            break;
+          case ARRIVE:
+            arrive(event.call);
+            break;
+          case COMPLETE:
+            complete(event.call);
+            break;
+          case RESPONSE:
+            respond(event.call);
+            break;
+          case FAILED:
+            fail(event.call);
+            break;
+          case NODE_DOWN:
+            goDown(event.node);
+            break;
+          case NODE_UP:
+            goUp(event.node);
+            break;
+          default:
+            throw new AssertionError("Unknown event " + event.type);
+        }
+      }
+      wallNanos = System.nanoTime() - start;
+      policy.close();
+    }
+
+    private void send(Call call) {
+      call.startNanos = now;
+      replicas = replicaSets.get(random.nextInt(replicaSets.size()));
+      call.plan = policy.newQueryPlan(SIMULATED_REQUEST, session);
+      dispatch(call);
+    }
+
+    /** Send the request to the next node of its plan. */
+    private void dispatch(Call call) {
+      SimulatedNode node = (SimulatedNode) call.plan.poll();
+      if (node == null) {
+        if (isMeasured(call.startNanos)) {
+          failures++;
+        }
+        schedule(SEND, now + thinkTime(), call, null);
+        return;
+      }
+      call.node = node;
+      call.attempt++;
+      call.attemptNanos = now;
+      schedule(ARRIVE, now + settings.networkNanos, call, null);
+    }
+
+    private void arrive(Call call) {
+      SimulatedNode node = call.node;
+      if (node.down) {
+        schedule(FAILED, now + settings.networkNanos, call, null);
+      } else if (node.freeSlotCount > 0) {
+        startService(node, call);
+      } else {
+        node.queue.add(call);
+      }
+    }
+
+    private void startService(SimulatedNode node, Call call) {
+      int slot = node.freeSlots[--node.freeSlotCount];
+      node.slots[slot] = call;
+      call.slot = slot;
+      call.serviceNanos = now;
+      long end =
+          node.behavior.afterGcPause(
+              now + node.behavior.nextLatencyNanos(node.random), 0, node.phase);
+      schedule(COMPLETE, end, call, null);
+    }
+
+    private void complete(Call call) {
+      SimulatedNode node = call.node;
+      releaseSlot(node, call.slot);
+      if (isMeasured(call.serviceNanos)) {
+        node.served++;
+        node.busyNanos += now - call.serviceNanos;
+        served++;
+      }
+      schedule(RESPONSE, now + settings.networkNanos, call, null);
+      Call next = node.queue.poll();
+      if (next != null) {
+        startService(node, next);
+      }
+    }
+
+    private void respond(Call call) {
+      tracker.onNodeSuccess(SIMULATED_REQUEST, now - call.attemptNanos, profile, call.node, "");
+      if (isMeasured(call.startNanos)) {
+        latencies.recordValue(Math.min(now - call.startNanos, HIGHEST_TRACKABLE_NANOS));
+        simulatedRequests++;
+      }
+      schedule(SEND, now + thinkTime(), call, null);
+    }
+
+    private void fail(Call call) {
+      tracker.onNodeError(
+          SIMULATED_REQUEST, NODE_DOWN_ERROR, now - call.attemptNanos, profile, call.node, "");
+      if (isMeasured(call.startNanos)) {
+        retries++;
+      }
+      dispatch(call);
+    }
+
+    /** The connections to the node are closed: its requests fail, and new ones are refused. */
+    private void goDown(SimulatedNode node) {
+      node.down = true;
+      policy.onDown(node);
+      for (int slot = 0; slot < node.slots.length; slot++) {
+        Call call = node.slots[slot];
+        if (call != null) {
+          releaseSlot(node, slot);
+          failNow(call);
+        }
+      }
+      for (Call call = node.queue.poll(); call != null; call = node.queue.poll()) {
+        failNow(call);
+      }
+      schedule(NODE_UP, now + node.behavior.getFlapDownNanos(), null, node);
+    }
+
+    private void goUp(SimulatedNode node) {
+      node.down = false;
+      policy.onUp(node);
+      long interval = node.behavior.getFlapIntervalNanos();
+      long down = node.behavior.getFlapDownNanos();
+      schedule(NODE_DOWN, now + Math.max(0, interval - down), null, node);
+    }
+
+    private void failNow(Call call) {
+      // invalidates the pending event of the interrupted attempt
+      call.attempt++;
+      schedule(FAILED, now, call, null);
+    }
+
+    private static void releaseSlot(SimulatedNode node, int slot) {
+      node.slots[slot] = null;
+      node.freeSlots[node.freeSlotCount++] = slot;
+    }
+
+    private void schedule(int type, long time, Call call, SimulatedNode node) {
+      events.add(new Event(time, sequence++, type, call, node));
+    }
+
+    private long thinkTime() {
+      return (long) (-Math.log(1 - random.nextDouble()) * settings.thinkNanos);
+    }
+
+    private boolean isMeasured(long startNanos) {
+      return startNanos >= settings.warmupNanos;
+    }
+
+    void printSummary(int index) {
+      double measuredSeconds = (settings.durationNanos - settings.warmupNanos) / 1e9;
+      System.out.println();
+      System.out.println("[" + index + "] " + name);
+      System.out.println("  latency: " + LatencyRecorder.summary(latencies));
+      System.out.printf(
+          "  simulated throughput: %.0f requests/s, %d retries, %d requests failed%n",
+          simulatedRequests / measuredSeconds, retries, failures);
+      System.out.printf(
+          "  simulation speed: %.0f simulated requests/s (%.1f s)%n",
+          (double) simulatedRequests / wallNanos * 1e9, wallNanos / 1e9);
+    }
+
+    double getShare(int node) {
+      return served == 0 ? 0 : (double) nodes[node].served / served;
+    }
+
+    double getUtilization(int node) {
+      double measuredNanos = settings.durationNanos - settings.warmupNanos;
+      return nodes[node].busyNanos / (measuredNanos * settings.concurrency);
+    }
+
+    /** Seeded instead of thread-local, so that the simulation is deterministic. */
+    private void shuffle(Object[] currentNodes, int headLength) {
+      for (int i = headLength - 1; i > 0; i--) {
+        ArrayUtils.swap(currentNodes, i, policyRandom.nextInt(i + 1));
+      }
+    }
+
+    private class SimulatedBasicPolicy extends BasicLoadBalancingPolicy {
+
+      SimulatedBasicPolicy() {
+        // the inherited context field is not accessible yet
+        super(Simulation.this.context, "default");
+      }
+
+      @NonNull
+      @Override
+      protected Optional<String> discoverLocalDc(@NonNull Map<UUID, Node> nodes) {
+        return Optional.of(LOCAL_DC);
+      }
+
+      @NonNull
+      @Override
+      protected Predicate<Node> createNodeFilter(
+          @Nullable String localDc, @NonNull Map<UUID, Node> nodes) {
+        return node -> true;
+      }
+
+      @NonNull
+      @Override
+      protected Set<Node> getReplicas(@Nullable Request request, @Nullable Session session) {
+        return replicas;
+      }
+
+      @Override
+      protected void shuffleHead(Object[] currentNodes, int headLength) {
+        shuffle(currentNodes, headLength);
+      }
+    }
+
+    /** The policy, on the virtual clock. */
+    private class SimulatedCustomPolicy extends CustomLoadBalancingPolicy {
+
+      SimulatedCustomPolicy() {
+        // the inherited context field is not accessible yet
+        super(Simulation.this.context, "default");
+      }
+
+      @NonNull
+      @Override
+      protected Optional<String> discoverLocalDc(@NonNull Map<UUID, Node> nodes) {
+        return Optional.of(LOCAL_DC);
+      }
+
+      @NonNull
+      @Override
+      protected Predicate<Node> createNodeFilter(
+          @Nullable String localDc, @NonNull Map<UUID, Node> nodes) {
+        return node -> true;
+      }
+
+      @NonNull
+      @Override
+      protected Set<Node> getReplicas(@Nullable Request request, @Nullable Session session) {
+        return replicas;
+      }
+
+      @Override
+      protected void shuffleHead(Object[] currentNodes, int headLength) {
+        shuffle(currentNodes, headLength);
+      }
+
+      @Override
+      protected long nanoTime() {
+        return now;
+      }
+
+      @Override
+      protected int diceRoll1d4() {
+        return policyRandom.nextInt(4);
+      }
+    }
+  }
+}
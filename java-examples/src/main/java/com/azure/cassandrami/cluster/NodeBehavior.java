@@ -0,0 +1,108 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.azure.cassandrami.cluster;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How a simulated node responds to the queries of the load test: its latency distribution, occasional stalls,
+ * periodic GC pauses and periodic restarts (flaps).
+ *
+ * <p>Times are {@link System#nanoTime()} values for the nodes of a {@link SimulatedCluster}, but any clock can be
+ * used, such as the virtual clock of a discrete-event simulation.
+ */
+public class NodeBehavior {
+
+    private final double medianLatencyMillis;
+    private final double latencySigma;
+    private final double stallRate;
+    private final long stallNanos;
+    private final long gcIntervalNanos;
+    private final long gcPauseNanos;
+    private final long flapIntervalNanos;
+    private final long flapDownNanos;
+
+    /**
+     * @param medianLatencyMillis median service time of a query
+     * @param latencySigma        spread of the lognormal distribution of the service time (0 for a constant)
+     * @param stallRate           fraction of the queries that are delayed by {@code stallMillis}
+     * @param stallMillis         extra delay of a stalled query
+     * @param gcIntervalSeconds   the node freezes for {@code gcPauseMillis} at this interval (0 to disable)
+     * @param gcPauseMillis       duration of a freeze: no response is sent until it ends
+     * @param flapIntervalSeconds the node goes down for {@code flapDownSeconds} at this interval (0 to disable)
+     * @param flapDownSeconds     how long the node stays down: its connections are closed, and new ones refused
+     */
+    public NodeBehavior(final double medianLatencyMillis, final double latencySigma, final double stallRate,
+            final long stallMillis, final long gcIntervalSeconds, final long gcPauseMillis,
+            final long flapIntervalSeconds, final long flapDownSeconds) {
+        if (medianLatencyMillis < 0 || latencySigma < 0 || stallRate < 0 || stallRate > 1 || stallMillis < 0
+                || gcIntervalSeconds < 0 || gcPauseMillis < 0 || flapIntervalSeconds < 0 || flapDownSeconds < 0) {
+            throw new IllegalArgumentException("Invalid simulated node settings");
+        }
+        if (gcIntervalSeconds > 0 && TimeUnit.MILLISECONDS.toSeconds(gcPauseMillis) >= gcIntervalSeconds) {
+            throw new IllegalArgumentException("The GC pauses must be shorter than their interval");
+        }
+        this.medianLatencyMillis = medianLatencyMillis;
+        this.latencySigma = latencySigma;
+        this.stallRate = stallRate;
+        this.stallNanos = TimeUnit.MILLISECONDS.toNanos(stallMillis);
+        this.gcIntervalNanos = TimeUnit.SECONDS.toNanos(gcIntervalSeconds);
+        this.gcPauseNanos = TimeUnit.MILLISECONDS.toNanos(gcPauseMillis);
+        this.flapIntervalNanos = TimeUnit.SECONDS.toNanos(flapIntervalSeconds);
+        this.flapDownNanos = TimeUnit.SECONDS.toNanos(flapDownSeconds);
+    }
+
+    /**
+     * @return the service time of the next query: lognormal around the median, plus a stall
+     */
+    public long nextLatencyNanos(final Random random) {
+        double millis = this.medianLatencyMillis;
+        if (this.latencySigma > 0) {
+            millis *= Math.exp(this.latencySigma * random.nextGaussian());
+        }
+        long nanos = (long) (millis * 1e6);
+        if (this.stallRate > 0 && random.nextDouble() < this.stallRate) {
+            nanos += this.stallNanos;
+        }
+        return nanos;
+    }
+
+    /**
+     * @param time   a {@link System#nanoTime()} value
+     * @param origin the time the node started
+     * @param phase  the first GC pause starts after this fraction of the interval (so that the nodes of a
+     *               cluster do not pause at the same time)
+     * @return the time itself, or the end of the GC pause it falls in
+     */
+    public long afterGcPause(final long time, final long origin, final double phase) {
+        if (this.gcIntervalNanos == 0) {
+            return time;
+        }
+        final long elapsed = time - origin - (long) (phase * this.gcIntervalNanos);
+        if (elapsed < 0) {
+            return time;
+        }
+        final long offset = elapsed % this.gcIntervalNanos;
+        return offset < this.gcPauseNanos ? time + this.gcPauseNanos - offset : time;
+    }
+
+    public long getFlapIntervalNanos() {
+        return this.flapIntervalNanos;
+    }
+
+    public long getFlapDownNanos() {
+        return this.flapDownNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("median latency %.1f ms (sigma %.2f), %.2f%% stalls of %d ms, "
+                + "GC pauses of %d ms every %d s, down for %d s every %d s", this.medianLatencyMillis,
+                this.latencySigma, this.stallRate * 100, TimeUnit.NANOSECONDS.toMillis(this.stallNanos),
+                TimeUnit.NANOSECONDS.toMillis(this.gcPauseNanos), TimeUnit.NANOSECONDS.toSeconds(this.gcIntervalNanos),
+                TimeUnit.NANOSECONDS.toSeconds(this.flapDownNanos),
+                TimeUnit.NANOSECONDS.toSeconds(this.flapIntervalNanos));
+    }
+}
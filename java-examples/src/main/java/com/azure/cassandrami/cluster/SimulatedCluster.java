@@ -0,0 +1,185 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.azure.cassandrami.cluster;
+
+import com.azure.cassandrami.util.Configurations;
+import com.datastax.oss.driver.api.core.config.DriverConfigLoader;
+import com.datastax.oss.driver.internal.core.config.typesafe.DefaultDriverConfigLoader;
+import com.typesafe.config.ConfigValueFactory;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-process cluster of simulated nodes, to run the load test without a real cluster, and to reproduce
+ * latency outliers, slow nodes, GC pauses and node restarts on demand.
+ *
+ * <p>The nodes listen on consecutive ports of the loopback address, in a single datacenter, and own evenly spaced
+ * Murmur3 tokens. They share the same in-memory storage, so every node is a replica of every row whatever the
+ * replication factor, and the driver's schema and topology metadata (and token-aware routing) work as with a real
+ * cluster. Each node answers the requests with its own {@link NodeBehavior}.
+ *
+ * <p>Driven by the {@code simulated*} properties of {@code application.conf}: per-node values are given as
+ * space-separated lists (the last value applies to the remaining nodes), and are applied again when the
+ * configuration is reloaded.
+ */
+public class SimulatedCluster implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SimulatedCluster.class);
+
+    private final String dataCenter;
+    private final SimulatedStorage storage = new SimulatedStorage();
+    private final EventLoopGroup group;
+    private final List<SimulatedNode> nodes = new ArrayList<SimulatedNode>();
+    private Configurations.Listener listener;
+    private Configurations config;
+
+    /**
+     * @param dataCenter name of the datacenter of all the nodes
+     * @param firstPort  port of the first node; the other nodes listen on the following ports
+     * @param behaviors  behavior of each node
+     * @param seed       seed of the random latencies, and of the host ids
+     */
+    public SimulatedCluster(final String dataCenter, final int firstPort, final List<NodeBehavior> behaviors,
+            final long seed) {
+        this.dataCenter = dataCenter;
+        this.group = new NioEventLoopGroup(Math.min(behaviors.size(), Runtime.getRuntime().availableProcessors()),
+                new DefaultThreadFactory("simulated-cluster", true));
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        // n evenly spaced tokens in [-2^63, 2^63)
+        final BigInteger ring = BigInteger.ONE.shiftLeft(64);
+        for (int i = 0; i < behaviors.size(); i++) {
+            final long token = ring.multiply(BigInteger.valueOf(i)).divide(BigInteger.valueOf(behaviors.size()))
+                    .add(BigInteger.valueOf(Long.MIN_VALUE)).longValue();
+            // the GC pauses and restarts of the nodes are spread over their interval
+            final double phase = (double) i / behaviors.size();
+            this.nodes.add(new SimulatedNode(this, i, new InetSocketAddress(loopback, firstPort + i), token, phase,
+                    behaviors.get(i), seed, this.group));
+        }
+    }
+
+    /**
+     * Create a cluster from the {@code simulated*} properties, which it then follows when they are reloaded
+     */
+    public static SimulatedCluster fromConfig(final Configurations config) throws IOException {
+        final SimulatedCluster cluster = new SimulatedCluster(config.getProperty("DC"),
+                Integer.parseInt(config.getProperty("simulatedPort").trim()),
+                behaviors(config, Integer.parseInt(config.getProperty("simulatedNodes").trim())),
+                Long.parseLong(config.getProperty("simulatedSeed").trim()));
+        cluster.config = config;
+        cluster.listener = c -> cluster.setBehaviors(behaviors(c, cluster.nodes.size()));
+        config.addListener(cluster.listener);
+        return cluster;
+    }
+
+    /**
+     * A configuration loader for a session connected to this cluster: the driver configuration of
+     * {@code application.conf}, without its contact points, credentials and SSL settings, which are meant for the
+     * real cluster (the contact points must be set with {@link #getContactPoints()})
+     */
+    public static DriverConfigLoader driverConfigLoader() {
+        return new DefaultDriverConfigLoader(() -> DefaultDriverConfigLoader.DEFAULT_CONFIG_SUPPLIER.get()
+                .withValue("basic.contact-points", ConfigValueFactory.fromIterable(Collections.emptyList()))
+                .withoutPath("advanced.auth-provider")
+                .withoutPath("advanced.ssl-engine-factory"));
+    }
+
+    public void start() {
+        LOGGER.info("Starting a simulated cluster of " + this.nodes.size() + " nodes");
+        for (final SimulatedNode node : this.nodes) {
+            node.start();
+        }
+    }
+
+    public List<InetSocketAddress> getContactPoints() {
+        final List<InetSocketAddress> contactPoints = new ArrayList<InetSocketAddress>();
+        for (final SimulatedNode node : this.nodes) {
+            contactPoints.add(node.getAddress());
+        }
+        return contactPoints;
+    }
+
+    public String getDataCenter() {
+        return this.dataCenter;
+    }
+
+    /**
+     * @param behaviors the new behavior of each node
+     */
+    public void setBehaviors(final List<NodeBehavior> behaviors) {
+        for (int i = 0; i < this.nodes.size(); i++) {
+            this.nodes.get(i).setBehavior(behaviors.get(i));
+            LOGGER.info("Simulated node {}: {}", i, behaviors.get(i));
+        }
+    }
+
+    List<SimulatedNode> getNodes() {
+        return this.nodes;
+    }
+
+    SimulatedStorage getStorage() {
+        return this.storage;
+    }
+
+    @Override
+    public void close() {
+        if (this.listener != null) {
+            this.config.removeListener(this.listener);
+        }
+        for (final SimulatedNode node : this.nodes) {
+            node.close();
+        }
+        this.group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    private static List<NodeBehavior> behaviors(final Configurations config, final int nodes) throws IOException {
+        final String[] latency = values(config, "simulatedLatencyMillis");
+        final String[] sigma = values(config, "simulatedLatencySigma");
+        final String[] stallRate = values(config, "simulatedStallRate");
+        final String[] stallMillis = values(config, "simulatedStallMillis");
+        final String[] gcInterval = values(config, "simulatedGcIntervalSeconds");
+        final String[] gcPause = values(config, "simulatedGcPauseMillis");
+        final String[] flapInterval = values(config, "simulatedFlapIntervalSeconds");
+        final String[] flapDown = values(config, "simulatedFlapDownSeconds");
+        final List<NodeBehavior> behaviors = new ArrayList<NodeBehavior>(nodes);
+        for (int i = 0; i < nodes; i++) {
+            behaviors.add(new NodeBehavior(
+                    Double.parseDouble(value(latency, i)),
+                    Double.parseDouble(value(sigma, i)),
+                    Double.parseDouble(value(stallRate, i)),
+                    Long.parseLong(value(stallMillis, i)),
+                    Long.parseLong(value(gcInterval, i)),
+                    Long.parseLong(value(gcPause, i)),
+                    Long.parseLong(value(flapInterval, i)),
+                    Long.parseLong(value(flapDown, i))));
+        }
+        return behaviors;
+    }
+
+    private static String[] values(final Configurations config, final String name) throws IOException {
+        final String value = config.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            throw new IllegalArgumentException("Missing property " + name);
+        }
+        return value.trim().split("[,\\s]+");
+    }
+
+    /**
+     * @return the value for a node: the last one applies to the nodes after it
+     */
+    private static String value(final String[] values, final int node) {
+        return values[Math.min(node, values.length - 1)].trim();
+    }
+}
@@ -0,0 +1,448 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.azure.cassandrami.cluster;
+
+import com.datastax.oss.driver.api.core.ProtocolVersion;
+import com.datastax.oss.driver.api.core.type.codec.TypeCodecs;
+import com.datastax.oss.driver.internal.core.protocol.ByteBufPrimitiveCodec;
+import com.datastax.oss.driver.internal.core.protocol.FrameDecoder;
+import com.datastax.oss.driver.internal.core.protocol.FrameEncoder;
+import com.datastax.oss.protocol.internal.Compressor;
+import com.datastax.oss.protocol.internal.Frame;
+import com.datastax.oss.protocol.internal.FrameCodec;
+import com.datastax.oss.protocol.internal.Message;
+import com.datastax.oss.protocol.internal.ProtocolConstants;
+import com.datastax.oss.protocol.internal.request.Batch;
+import com.datastax.oss.protocol.internal.request.Execute;
+import com.datastax.oss.protocol.internal.request.Prepare;
+import com.datastax.oss.protocol.internal.request.Query;
+import com.datastax.oss.protocol.internal.response.Error;
+import com.datastax.oss.protocol.internal.response.Ready;
+import com.datastax.oss.protocol.internal.response.Supported;
+import com.datastax.oss.protocol.internal.response.result.ColumnSpec;
+import com.datastax.oss.protocol.internal.response.result.DefaultRows;
+import com.datastax.oss.protocol.internal.response.result.RawType;
+import com.datastax.oss.protocol.internal.response.result.RowsMetadata;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * A node of a {@link SimulatedCluster}: a server speaking the native protocol (v4 only) on its own port.
+ *
+ * <p>The handshake, heartbeats and queries on the system tables are answered immediately, so that the driver's
+ * control connection and connection pools are not disturbed by the simulation. The other requests are answered
+ * after the service time drawn from the node's {@link NodeBehavior}, extended to the end of the GC pause it falls
+ * in, if any. While the node is down, its port is closed and so are its connections, as if it was restarting.
+ */
+class SimulatedNode {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SimulatedNode.class);
+
+    static final String RELEASE_VERSION = "3.11.9";
+    private static final String CLUSTER_NAME = "Simulated Cluster";
+    private static final String RACK = "rack1";
+    private static final int MAX_FRAME_LENGTH = 256 * 1024 * 1024;
+    private static final ProtocolVersion VERSION = ProtocolVersion.V4;
+
+    private static final Pattern LOCAL = Pattern.compile("(?is).*\\bfrom\\s+system\\.local\\b.*");
+    private static final Pattern PEERS_V2 = Pattern.compile("(?is).*\\bfrom\\s+system\\.peers_v2\\b.*");
+    private static final Pattern KEYSPACES = Pattern.compile("(?is).*\\bfrom\\s+system_schema\\.keyspaces\\b.*");
+    private static final Pattern SYSTEM = Pattern.compile("(?is).*\\bfrom\\s+system(_\\w+)?\\..*");
+
+    private static final RawType TEXT = RawType.PRIMITIVES.get(ProtocolConstants.DataType.VARCHAR);
+    private static final RawType INET = RawType.PRIMITIVES.get(ProtocolConstants.DataType.INET);
+    private static final RawType INT = RawType.PRIMITIVES.get(ProtocolConstants.DataType.INT);
+    private static final RawType UUID_TYPE = RawType.PRIMITIVES.get(ProtocolConstants.DataType.UUID);
+    private static final RawType BOOLEAN = RawType.PRIMITIVES.get(ProtocolConstants.DataType.BOOLEAN);
+    private static final RawType TEXT_SET = new RawType.RawSet(TEXT);
+    private static final RawType TEXT_MAP = new RawType.RawMap(TEXT, TEXT);
+
+    private static final RowsMetadata LOCAL_COLUMNS = columns("system", "local",
+            "key", TEXT, "bootstrapped", TEXT, "broadcast_address", INET, "broadcast_port", INT,
+            "cluster_name", TEXT, "cql_version", TEXT, "data_center", TEXT, "host_id", UUID_TYPE,
+            "listen_address", INET, "listen_port", INT, "native_protocol_version", TEXT, "partitioner", TEXT,
+            "rack", TEXT, "release_version", TEXT, "rpc_address", INET, "rpc_port", INT,
+            "schema_version", UUID_TYPE, "tokens", TEXT_SET);
+    private static final RowsMetadata PEERS_COLUMNS = columns("system", "peers_v2",
+            "peer", INET, "peer_port", INT, "data_center", TEXT, "host_id", UUID_TYPE, "native_address", INET,
+            "native_port", INT, "preferred_ip", INET, "preferred_port", INT, "rack", TEXT,
+            "release_version", TEXT, "schema_version", UUID_TYPE, "tokens", TEXT_SET);
+    private static final RowsMetadata KEYSPACES_COLUMNS = columns("system_schema", "keyspaces",
+            "keyspace_name", TEXT, "durable_writes", BOOLEAN, "replication", TEXT_MAP);
+    private static final RowsMetadata NO_COLUMNS = columns("system", "unknown");
+
+    private static final Map<String, List<String>> SUPPORTED = new HashMap<String, List<String>>();
+
+    static {
+        SUPPORTED.put("CQL_VERSION", Collections.singletonList("3.4.4"));
+        SUPPORTED.put("COMPRESSION", Collections.<String>emptyList());
+        SUPPORTED.put("PROTOCOL_VERSIONS", Collections.singletonList("4/v4"));
+    }
+
+    private final SimulatedCluster cluster;
+    private final int index;
+    private final InetSocketAddress address;
+    /** address the node would use to talk to the other nodes */
+    private final InetSocketAddress broadcastAddress;
+    private final UUID hostId;
+    private final long token;
+    private final Random random;
+    /** this node's GC pauses and flaps are shifted by this fraction of their interval */
+    private final double phase;
+    private final EventLoopGroup group;
+    private final ServerBootstrap bootstrap;
+    private final ChannelGroup connections = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+    private volatile NodeBehavior behavior;
+    private volatile Channel serverChannel;
+    private volatile boolean closed;
+    private long startNanos;
+
+    SimulatedNode(final SimulatedCluster cluster, final int index, final InetSocketAddress address,
+            final long token, final double phase, final NodeBehavior behavior, final long seed,
+            final EventLoopGroup group) {
+        this.cluster = cluster;
+        this.index = index;
+        this.address = address;
+        this.broadcastAddress = new InetSocketAddress(address.getAddress(), 7000 + index);
+        this.hostId = new UUID(seed, index);
+        this.token = token;
+        this.behavior = behavior;
+        // consecutive seeds give similar first values: spread them
+        this.random = new Random(seed ^ (index * 0x9E3779B97F4A7C15L));
+        this.phase = phase;
+        this.group = group;
+        final FrameCodec<ByteBuf> codec = FrameCodec.defaultServer(
+                new ByteBufPrimitiveCodec(ByteBufAllocator.DEFAULT), Compressor.<ByteBuf>none());
+        this.bootstrap = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .option(ChannelOption.SO_REUSEADDR, true)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(final SocketChannel channel) {
+                        SimulatedNode.this.connections.add(channel);
+                        channel.pipeline().addLast(new ProtocolVersionCheck(),
+                                new FrameDecoder(codec, MAX_FRAME_LENGTH), new FrameEncoder(codec, MAX_FRAME_LENGTH),
+                                new RequestHandler());
+                    }
+                });
+    }
+
+    InetSocketAddress getAddress() {
+        return this.address;
+    }
+
+    void setBehavior(final NodeBehavior behavior) {
+        this.behavior = behavior;
+    }
+
+    void start() {
+        this.startNanos = System.nanoTime();
+        this.serverChannel = this.bootstrap.bind(this.address).syncUninterruptibly().channel();
+        LOGGER.info("Simulated node {} listening on {}: {}", this.index, this.address, this.behavior);
+        flap(false);
+    }
+
+    void close() {
+        this.closed = true;
+        final Channel channel = this.serverChannel;
+        if (channel != null) {
+            channel.close().syncUninterruptibly();
+        }
+        this.connections.close().syncUninterruptibly();
+    }
+
+    /**
+     * Restart the node at the interval of its current behavior
+     *
+     * @param due if the restart is due now, otherwise the first one is scheduled
+     */
+    private void flap(final boolean due) {
+        if (this.closed) {
+            return;
+        }
+        final NodeBehavior behavior = this.behavior;
+        final long interval = behavior.getFlapIntervalNanos();
+        if (interval == 0) {
+            // check again later, in case the configuration is reloaded
+            this.group.schedule(() -> flap(false), 1, TimeUnit.SECONDS);
+        } else if (!due) {
+            // shifted by the node's phase, so that the nodes do not restart together
+            this.group.schedule(() -> flap(true), (long) ((1 + this.phase) * interval), TimeUnit.NANOSECONDS);
+        } else {
+            this.group.schedule(() -> flap(true), interval, TimeUnit.NANOSECONDS);
+            goDown(behavior.getFlapDownNanos());
+        }
+    }
+
+    private void goDown(final long downNanos) {
+        final Channel channel = this.serverChannel;
+        if (channel == null) {
+            // still down
+            return;
+        }
+        LOGGER.info("Simulated node {} going down for {} s", this.index, TimeUnit.NANOSECONDS.toSeconds(downNanos));
+        this.serverChannel = null;
+        channel.close();
+        this.connections.close();
+        this.group.schedule(this::goUp, downNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void goUp() {
+        if (this.closed) {
+            return;
+        }
+        this.bootstrap.bind(this.address).addListener((ChannelFutureListener) future -> {
+            if (future.isSuccess()) {
+                this.serverChannel = future.channel();
+                LOGGER.info("Simulated node {} is up", this.index);
+            } else {
+                LOGGER.warn("Simulated node {} could not listen on {}, retrying: {}", this.index, this.address,
+                        future.cause().toString());
+                this.group.schedule(this::goUp, 1, TimeUnit.SECONDS);
+            }
+        });
+    }
+
+    /**
+     * @return the response to a query on a system table, or null if the query is not on a system table
+     */
+    private Message systemQuery(final Query query) {
+        final String cql = query.query;
+        if (LOCAL.matcher(cql).matches()) {
+            return rows(LOCAL_COLUMNS, Collections.singletonList(localRow()));
+        }
+        if (PEERS_V2.matcher(cql).matches()) {
+            // the driver refreshes a single peer with "where peer = :address and peer_port = :port"
+            final ByteBuffer peer = query.options.namedValues.get("address");
+            final ByteBuffer peerPort = query.options.namedValues.get("port");
+            final List<List<ByteBuffer>> rows = new ArrayList<List<ByteBuffer>>();
+            for (final SimulatedNode node : this.cluster.getNodes()) {
+                if (node != this && (peer == null || node.broadcastAddress.getAddress().equals(
+                        TypeCodecs.INET.decode(peer, VERSION)))
+                        && (peerPort == null || node.broadcastAddress.getPort() == TypeCodecs.INT.decode(peerPort,
+                                VERSION))) {
+                    rows.add(node.peerRow());
+                }
+            }
+            return rows(PEERS_COLUMNS, rows);
+        }
+        if (KEYSPACES.matcher(cql).matches()) {
+            final List<List<ByteBuffer>> rows = new ArrayList<List<ByteBuffer>>();
+            for (final Map.Entry<String, Map<String, String>> keyspace
+                    : this.cluster.getStorage().getKeyspaces().entrySet()) {
+                rows.add(Arrays.asList(
+                        TypeCodecs.TEXT.encode(keyspace.getKey(), VERSION),
+                        TypeCodecs.BOOLEAN.encode(true, VERSION),
+                        TypeCodecs.mapOf(TypeCodecs.TEXT, TypeCodecs.TEXT).encode(keyspace.getValue(), VERSION)));
+            }
+            return rows(KEYSPACES_COLUMNS, rows);
+        }
+        if (SYSTEM.matcher(cql).matches()) {
+            // the other system tables are empty
+            return rows(NO_COLUMNS, Collections.<List<ByteBuffer>>emptyList());
+        }
+        return null;
+    }
+
+    private List<ByteBuffer> localRow() {
+        final InetAddress address = this.address.getAddress();
+        return Arrays.asList(
+                TypeCodecs.TEXT.encode("local", VERSION),
+                TypeCodecs.TEXT.encode("COMPLETED", VERSION),
+                TypeCodecs.INET.encode(this.broadcastAddress.getAddress(), VERSION),
+                TypeCodecs.INT.encode(this.broadcastAddress.getPort(), VERSION),
+                TypeCodecs.TEXT.encode(CLUSTER_NAME, VERSION),
+                TypeCodecs.TEXT.encode("3.4.4", VERSION),
+                TypeCodecs.TEXT.encode(this.cluster.getDataCenter(), VERSION),
+                TypeCodecs.UUID.encode(this.hostId, VERSION),
+                TypeCodecs.INET.encode(this.broadcastAddress.getAddress(), VERSION),
+                TypeCodecs.INT.encode(this.broadcastAddress.getPort(), VERSION),
+                TypeCodecs.TEXT.encode("4", VERSION),
+                TypeCodecs.TEXT.encode("org.apache.cassandra.dht.Murmur3Partitioner", VERSION),
+                TypeCodecs.TEXT.encode(RACK, VERSION),
+                TypeCodecs.TEXT.encode(RELEASE_VERSION, VERSION),
+                TypeCodecs.INET.encode(address, VERSION),
+                TypeCodecs.INT.encode(this.address.getPort(), VERSION),
+                TypeCodecs.UUID.encode(this.cluster.getStorage().getSchemaVersion(), VERSION),
+                tokens());
+    }
+
+    private List<ByteBuffer> peerRow() {
+        return Arrays.asList(
+                TypeCodecs.INET.encode(this.broadcastAddress.getAddress(), VERSION),
+                TypeCodecs.INT.encode(this.broadcastAddress.getPort(), VERSION),
+                TypeCodecs.TEXT.encode(this.cluster.getDataCenter(), VERSION),
+                TypeCodecs.UUID.encode(this.hostId, VERSION),
+                TypeCodecs.INET.encode(this.address.getAddress(), VERSION),
+                TypeCodecs.INT.encode(this.address.getPort(), VERSION),
+                null,
+                null,
+                TypeCodecs.TEXT.encode(RACK, VERSION),
+                TypeCodecs.TEXT.encode(RELEASE_VERSION, VERSION),
+                TypeCodecs.UUID.encode(this.cluster.getStorage().getSchemaVersion(), VERSION),
+                tokens());
+    }
+
+    private ByteBuffer tokens() {
+        return TypeCodecs.setOf(TypeCodecs.TEXT).encode(Collections.singleton(Long.toString(this.token)), VERSION);
+    }
+
+    private static Message rows(final RowsMetadata metadata, final List<List<ByteBuffer>> rows) {
+        final Queue<List<ByteBuffer>> data = new ArrayDeque<List<ByteBuffer>>(rows);
+        return new DefaultRows(metadata, data);
+    }
+
+    /**
+     * @param namesAndTypes the name and {@link RawType} of each column
+     */
+    private static RowsMetadata columns(final String keyspace, final String table, final Object... namesAndTypes) {
+        final List<ColumnSpec> specs = new ArrayList<ColumnSpec>();
+        for (int i = 0; i < namesAndTypes.length; i += 2) {
+            specs.add(new ColumnSpec(keyspace, table, (String) namesAndTypes[i], i / 2,
+                    (RawType) namesAndTypes[i + 1]));
+        }
+        return new RowsMetadata(specs, null, null, null);
+    }
+
+    /**
+     * Answer the requests of a connection
+     */
+    private class RequestHandler extends SimpleChannelInboundHandler<Frame> {
+
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx, final Frame frame) {
+            final Message request = frame.message;
+            final SimulatedStorage storage = SimulatedNode.this.cluster.getStorage();
+            switch (request.opcode) {
+                case ProtocolConstants.Opcode.OPTIONS:
+                    respond(ctx, frame, new Supported(SUPPORTED), 0);
+                    break;
+                case ProtocolConstants.Opcode.STARTUP:
+                case ProtocolConstants.Opcode.REGISTER:
+                    respond(ctx, frame, new Ready(), 0);
+                    break;
+                case ProtocolConstants.Opcode.QUERY:
+                    final Query query = (Query) request;
+                    final Message system = systemQuery(query);
+                    if (system != null) {
+                        respond(ctx, frame, system, 0);
+                    } else {
+                        respond(ctx, frame, storage.query(query.query, query.options.positionalValues,
+                                query.options.defaultTimestamp), serviceTime());
+                    }
+                    break;
+                case ProtocolConstants.Opcode.PREPARE:
+                    respond(ctx, frame, storage.prepare(((Prepare) request).cqlQuery), 0);
+                    break;
+                case ProtocolConstants.Opcode.EXECUTE:
+                    final Execute execute = (Execute) request;
+                    respond(ctx, frame, storage.execute(execute.queryId, execute.options.positionalValues,
+                            execute.options.defaultTimestamp), serviceTime());
+                    break;
+                case ProtocolConstants.Opcode.BATCH:
+                    final Batch batch = (Batch) request;
+                    respond(ctx, frame, storage.batch(batch.queriesOrIds, batch.values, batch.defaultTimestamp),
+                            serviceTime());
+                    break;
+                default:
+                    respond(ctx, frame, new Error(ProtocolConstants.ErrorCode.PROTOCOL_ERROR,
+                            "Request not supported by the simulated cluster: " + request), 0);
+            }
+        }
+
+        /**
+         * @return how long to wait before sending the response of a request received now
+         */
+        private long serviceTime() {
+            final NodeBehavior behavior = SimulatedNode.this.behavior;
+            final long now = System.nanoTime();
+            final long start = SimulatedNode.this.startNanos;
+            final double phase = SimulatedNode.this.phase;
+            // a request received during a GC pause is only processed after it, and its response waits for the
+            // next pause to end if it is due during one
+            final long processed = behavior.afterGcPause(now, start, phase);
+            return behavior.afterGcPause(processed + behavior.nextLatencyNanos(SimulatedNode.this.random), start,
+                    phase) - now;
+        }
+
+        private void respond(final ChannelHandlerContext ctx, final Frame request, final Message message,
+                final long delayNanos) {
+            final Frame response = Frame.forResponse(request.protocolVersion, request.streamId, null,
+                    Frame.NO_PAYLOAD, Collections.<String>emptyList(), message);
+            if (delayNanos <= 0) {
+                ctx.writeAndFlush(response);
+            } else {
+                ctx.executor().schedule(() -> ctx.writeAndFlush(response), delayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
+            LOGGER.debug("Simulated node {} closing a connection after an error: {}", SimulatedNode.this.index,
+                    cause.toString());
+            ctx.close();
+        }
+    }
+
+    /**
+     * Reject the protocol versions other than v4, like Cassandra does, so that the driver negotiates v4
+     */
+    private static class ProtocolVersionCheck extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+            final ByteBuf buffer = (ByteBuf) msg;
+            if (buffer.readableBytes() < 4) {
+                ctx.fireChannelRead(msg);
+                return;
+            }
+            final int version = buffer.getByte(buffer.readerIndex()) & 0x7F;
+            if (version == VERSION.getCode()) {
+                ctx.pipeline().remove(this);
+                ctx.fireChannelRead(msg);
+                return;
+            }
+            final int streamId = buffer.getShort(buffer.readerIndex() + 2);
+            buffer.release();
+            final Error error = new Error(ProtocolConstants.ErrorCode.PROTOCOL_ERROR,
+                    "Invalid or unsupported protocol version (" + version + "); supported versions are (4/v4)");
+            ctx.channel().writeAndFlush(Frame.forResponse(VERSION.getCode(), streamId, null, Frame.NO_PAYLOAD,
+                    Collections.<String>emptyList(), error)).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+}
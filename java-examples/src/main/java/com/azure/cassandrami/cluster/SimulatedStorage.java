@@ -0,0 +1,586 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.azure.cassandrami.cluster;
+
+import com.datastax.oss.driver.internal.core.metadata.token.Murmur3Token;
+import com.datastax.oss.driver.internal.core.metadata.token.Murmur3TokenFactory;
+import com.datastax.oss.protocol.internal.Message;
+import com.datastax.oss.protocol.internal.ProtocolConstants;
+import com.datastax.oss.protocol.internal.request.query.QueryOptions;
+import com.datastax.oss.protocol.internal.response.Error;
+import com.datastax.oss.protocol.internal.response.error.AlreadyExists;
+import com.datastax.oss.protocol.internal.response.error.Unprepared;
+import com.datastax.oss.protocol.internal.response.result.ColumnSpec;
+import com.datastax.oss.protocol.internal.response.result.DefaultRows;
+import com.datastax.oss.protocol.internal.response.result.Prepared;
+import com.datastax.oss.protocol.internal.response.result.RawType;
+import com.datastax.oss.protocol.internal.response.result.RowsMetadata;
+import com.datastax.oss.protocol.internal.response.result.SchemaChange;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The schema and data of a simulated cluster, shared by all its nodes (every node is a replica of every row).
+ *
+ * <p>Only the statements of this sample are understood: creating and dropping keyspaces and tables with a single
+ * partition key column and no clustering columns, inserting rows, and selecting them by partition key or token
+ * range. The values of bind markers are stored as they are sent, without being validated, and results are not
+ * paged. As in Cassandra, each value keeps the write with the highest timestamp (the one sent by the client, or the
+ * time the write is received), whatever the order the writes are received in.
+ */
+class SimulatedStorage {
+
+    private static final int FLAGS = Pattern.CASE_INSENSITIVE | Pattern.DOTALL;
+    private static final Pattern CREATE_KEYSPACE = Pattern.compile(
+            "\\s*create\\s+keyspace\\s+(if\\s+not\\s+exists\\s+)?(\\w+)\\s+with\\s+replication\\s*=\\s*\\{(.*?)}.*",
+            FLAGS);
+    private static final Pattern DROP_KEYSPACE =
+            Pattern.compile("\\s*drop\\s+keyspace\\s+(if\\s+exists\\s+)?(\\w+)\\s*;?\\s*", FLAGS);
+    private static final Pattern CREATE_TABLE = Pattern.compile(
+            "\\s*create\\s+table\\s+(if\\s+not\\s+exists\\s+)?(\\w+)\\.(\\w+)\\s*\\((.*)\\)(\\s+with\\s+.*)?\\s*;?\\s*",
+            FLAGS);
+    private static final Pattern DROP_TABLE =
+            Pattern.compile("\\s*drop\\s+table\\s+(if\\s+exists\\s+)?(\\w+)\\.(\\w+)\\s*;?\\s*", FLAGS);
+    private static final Pattern INSERT = Pattern.compile(
+            "\\s*insert\\s+into\\s+(\\w+)\\.(\\w+)\\s*\\(([^)]*)\\)\\s*values\\s*\\(([^)]*)\\)\\s*;?\\s*", FLAGS);
+    private static final Pattern SELECT = Pattern.compile(
+            "\\s*select\\s+(.+?)\\s+from\\s+(\\w+)\\.(\\w+)(?:\\s+where\\s+(.+?))?\\s*;?\\s*", FLAGS);
+    private static final Pattern CONDITION = Pattern.compile(
+            "\\s*(?:token\\s*\\(\\s*(\\w+)\\s*\\)|(\\w+))\\s*(=|>=|<=|>|<)\\s*\\?\\s*", FLAGS);
+    private static final Pattern AND = Pattern.compile("\\s+and\\s+", FLAGS);
+    private static final Pattern COLUMN = Pattern.compile("\\s*(\\w+)\\s+(\\w+)(\\s+primary\\s+key)?\\s*", FLAGS);
+    private static final Pattern PRIMARY_KEY = Pattern.compile("\\s*primary\\s+key\\s*\\(\\s*(\\w+)\\s*\\)\\s*", FLAGS);
+    private static final Pattern MAP_ENTRY = Pattern.compile("'([^']*)'\\s*:\\s*'?([^',}]*?)'?\\s*(,|$)", FLAGS);
+    private static final Pattern COUNT = Pattern.compile("count\\s*\\(\\s*(\\*|1)\\s*\\)", FLAGS);
+
+    private static final Map<String, Integer> TYPES = new HashMap<String, Integer>();
+
+    static {
+        TYPES.put("ascii", ProtocolConstants.DataType.ASCII);
+        TYPES.put("bigint", ProtocolConstants.DataType.BIGINT);
+        TYPES.put("blob", ProtocolConstants.DataType.BLOB);
+        TYPES.put("boolean", ProtocolConstants.DataType.BOOLEAN);
+        TYPES.put("date", ProtocolConstants.DataType.DATE);
+        TYPES.put("decimal", ProtocolConstants.DataType.DECIMAL);
+        TYPES.put("double", ProtocolConstants.DataType.DOUBLE);
+        TYPES.put("float", ProtocolConstants.DataType.FLOAT);
+        TYPES.put("inet", ProtocolConstants.DataType.INET);
+        TYPES.put("int", ProtocolConstants.DataType.INT);
+        TYPES.put("smallint", ProtocolConstants.DataType.SMALLINT);
+        TYPES.put("text", ProtocolConstants.DataType.VARCHAR);
+        TYPES.put("time", ProtocolConstants.DataType.TIME);
+        TYPES.put("timestamp", ProtocolConstants.DataType.TIMESTAMP);
+        TYPES.put("timeuuid", ProtocolConstants.DataType.TIMEUUID);
+        TYPES.put("tinyint", ProtocolConstants.DataType.TINYINT);
+        TYPES.put("uuid", ProtocolConstants.DataType.UUID);
+        TYPES.put("varchar", ProtocolConstants.DataType.VARCHAR);
+        TYPES.put("varint", ProtocolConstants.DataType.VARINT);
+    }
+
+    private static final RawType BIGINT = RawType.PRIMITIVES.get(ProtocolConstants.DataType.BIGINT);
+
+    private final Murmur3TokenFactory tokenFactory = new Murmur3TokenFactory();
+    /** keyspace name -> replication options */
+    private final ConcurrentMap<String, Map<String, String>> keyspaces = new ConcurrentHashMap<>();
+    /** keyspace.table -> table */
+    private final ConcurrentMap<String, Table> tables = new ConcurrentHashMap<>();
+    /** MD5 of the query string -> statement */
+    private final ConcurrentMap<ByteBuffer, Statement> prepared = new ConcurrentHashMap<>();
+    private volatile UUID schemaVersion = UUID.randomUUID();
+
+    UUID getSchemaVersion() {
+        return this.schemaVersion;
+    }
+
+    Map<String, Map<String, String>> getKeyspaces() {
+        return Collections.unmodifiableMap(this.keyspaces);
+    }
+
+    /**
+     * Execute an unprepared statement, which may be a schema change
+     *
+     * @param timestamp the timestamp of the writes in microseconds, or {@link QueryOptions#NO_DEFAULT_TIMESTAMP}
+     */
+    Message query(final String query, final List<ByteBuffer> values, final long timestamp) {
+        try {
+            final Message schemaChange = changeSchema(query);
+            return schemaChange != null ? schemaChange : parse(query).execute(values, timestamp);
+        } catch (final IllegalArgumentException e) {
+            return new Error(ProtocolConstants.ErrorCode.INVALID, e.getMessage());
+        }
+    }
+
+    Message prepare(final String query) {
+        final Statement statement;
+        try {
+            statement = parse(query);
+        } catch (final IllegalArgumentException e) {
+            return new Error(ProtocolConstants.ErrorCode.INVALID, e.getMessage());
+        }
+        final byte[] id = md5(query);
+        this.prepared.put(ByteBuffer.wrap(id), statement);
+        return new Prepared(id, null, statement.variables, statement.result);
+    }
+
+    Message execute(final byte[] id, final List<ByteBuffer> values, final long timestamp) {
+        final Statement statement = this.prepared.get(ByteBuffer.wrap(id));
+        if (statement == null) {
+            return new Unprepared("Prepared query not found, it must be prepared again", id);
+        }
+        try {
+            return statement.execute(values, timestamp);
+        } catch (final IllegalArgumentException e) {
+            return new Error(ProtocolConstants.ErrorCode.INVALID, e.getMessage());
+        }
+    }
+
+    /**
+     * @param queriesOrIds a query string or prepared statement id for each statement of the batch
+     */
+    Message batch(final List<Object> queriesOrIds, final List<List<ByteBuffer>> values, final long timestamp) {
+        final List<Statement> statements = new ArrayList<Statement>(queriesOrIds.size());
+        try {
+            for (final Object queryOrId : queriesOrIds) {
+                if (queryOrId instanceof String) {
+                    statements.add(parse((String) queryOrId));
+                } else {
+                    final Statement statement = this.prepared.get(ByteBuffer.wrap((byte[]) queryOrId));
+                    if (statement == null) {
+                        return new Unprepared("Prepared query not found, it must be prepared again",
+                                (byte[]) queryOrId);
+                    }
+                    statements.add(statement);
+                }
+            }
+            for (final Statement statement : statements) {
+                if (!statement.insert) {
+                    throw new IllegalArgumentException("Only inserts can be batched");
+                }
+            }
+            for (int i = 0; i < statements.size(); i++) {
+                statements.get(i).execute(values.get(i), timestamp);
+            }
+            return com.datastax.oss.protocol.internal.response.result.Void.INSTANCE;
+        } catch (final IllegalArgumentException e) {
+            return new Error(ProtocolConstants.ErrorCode.INVALID, e.getMessage());
+        }
+    }
+
+    /**
+     * @return the response to the schema change, or null if the query is not a schema change
+     */
+    private Message changeSchema(final String query) {
+        Matcher matcher = CREATE_KEYSPACE.matcher(query);
+        if (matcher.matches()) {
+            final String keyspace = matcher.group(2).toLowerCase();
+            final Map<String, String> replication = new LinkedHashMap<String, String>();
+            final Matcher entry = MAP_ENTRY.matcher(matcher.group(3).trim());
+            while (entry.find()) {
+                replication.put(entry.group(1), entry.group(2).trim());
+            }
+            final String strategy = replication.get("class");
+            if (strategy == null) {
+                throw new IllegalArgumentException("Missing replication strategy class");
+            }
+            if (!strategy.contains(".")) {
+                replication.put("class", "org.apache.cassandra.locator." + strategy);
+            }
+            if (this.keyspaces.putIfAbsent(keyspace, replication) != null) {
+                return matcher.group(1) != null
+                        ? com.datastax.oss.protocol.internal.response.result.Void.INSTANCE
+                        : new AlreadyExists("Keyspace " + keyspace + " already exists", keyspace, "");
+            }
+            return schemaChanged(ProtocolConstants.SchemaChangeType.CREATED, keyspace, null);
+        }
+        matcher = DROP_KEYSPACE.matcher(query);
+        if (matcher.matches()) {
+            final String keyspace = matcher.group(2).toLowerCase();
+            if (this.keyspaces.remove(keyspace) == null) {
+                if (matcher.group(1) != null) {
+                    return com.datastax.oss.protocol.internal.response.result.Void.INSTANCE;
+                }
+                throw new IllegalArgumentException("Keyspace " + keyspace + " does not exist");
+            }
+            this.tables.values().removeIf(table -> table.keyspace.equals(keyspace));
+            return schemaChanged(ProtocolConstants.SchemaChangeType.DROPPED, keyspace, null);
+        }
+        matcher = CREATE_TABLE.matcher(query);
+        if (matcher.matches()) {
+            final Table table = createTable(matcher.group(2).toLowerCase(), matcher.group(3).toLowerCase(),
+                    matcher.group(4));
+            if (this.tables.putIfAbsent(table.fullName(), table) != null) {
+                return matcher.group(1) != null
+                        ? com.datastax.oss.protocol.internal.response.result.Void.INSTANCE
+                        : new AlreadyExists("Table " + table.fullName() + " already exists", table.keyspace,
+                                table.name);
+            }
+            return schemaChanged(ProtocolConstants.SchemaChangeType.CREATED, table.keyspace, table.name);
+        }
+        matcher = DROP_TABLE.matcher(query);
+        if (matcher.matches()) {
+            final String keyspace = matcher.group(2).toLowerCase();
+            final String name = matcher.group(3).toLowerCase();
+            if (this.tables.remove(keyspace + "." + name) == null) {
+                if (matcher.group(1) != null) {
+                    return com.datastax.oss.protocol.internal.response.result.Void.INSTANCE;
+                }
+                throw new IllegalArgumentException("Table " + keyspace + "." + name + " does not exist");
+            }
+            return schemaChanged(ProtocolConstants.SchemaChangeType.DROPPED, keyspace, name);
+        }
+        return null;
+    }
+
+    private Message schemaChanged(final String changeType, final String keyspace, final String table) {
+        this.schemaVersion = UUID.randomUUID();
+        // statements prepared on a dropped table must fail, and be prepared again on its new version
+        this.prepared.clear();
+        final String target = table == null
+                ? ProtocolConstants.SchemaChangeTarget.KEYSPACE : ProtocolConstants.SchemaChangeTarget.TABLE;
+        return new SchemaChange(changeType, target, keyspace, table, Collections.<String>emptyList());
+    }
+
+    private Table createTable(final String keyspace, final String name, final String definition) {
+        if (!this.keyspaces.containsKey(keyspace)) {
+            throw new IllegalArgumentException("Keyspace " + keyspace + " does not exist");
+        }
+        final List<String> columns = new ArrayList<String>();
+        final List<RawType> types = new ArrayList<RawType>();
+        String partitionKey = null;
+        for (final String part : definition.split(",(?![^(]*\\))")) {
+            final Matcher primaryKey = PRIMARY_KEY.matcher(part);
+            final Matcher column = COLUMN.matcher(part);
+            if (primaryKey.matches()) {
+                partitionKey = primaryKey.group(1).toLowerCase();
+            } else if (column.matches()) {
+                final Integer type = TYPES.get(column.group(2).toLowerCase());
+                if (type == null) {
+                    throw new IllegalArgumentException("Type " + column.group(2)
+                            + " is not supported by the simulated cluster");
+                }
+                columns.add(column.group(1).toLowerCase());
+                types.add(RawType.PRIMITIVES.get(type));
+                if (column.group(3) != null) {
+                    partitionKey = column.group(1).toLowerCase();
+                }
+            } else {
+                throw new IllegalArgumentException("Unsupported table definition (only a single partition key and no "
+                        + "clustering column are supported by the simulated cluster): " + part.trim());
+            }
+        }
+        if (partitionKey == null || !columns.contains(partitionKey)) {
+            throw new IllegalArgumentException("Missing primary key in the definition of " + keyspace + "." + name);
+        }
+        return new Table(keyspace, name, columns, types, columns.indexOf(partitionKey));
+    }
+
+    private Statement parse(final String query) {
+        Matcher matcher = INSERT.matcher(query);
+        if (matcher.matches()) {
+            final Table table = table(matcher.group(1), matcher.group(2));
+            final String[] names = matcher.group(3).split(",");
+            final String[] markers = matcher.group(4).split(",");
+            if (names.length != markers.length) {
+                throw new IllegalArgumentException("Unmatched column names/values");
+            }
+            final int[] columns = new int[names.length];
+            final List<ColumnSpec> variables = new ArrayList<ColumnSpec>();
+            int keyVariable = -1;
+            for (int i = 0; i < names.length; i++) {
+                if (!markers[i].trim().equals("?")) {
+                    throw new IllegalArgumentException("Only bind markers are supported by the simulated cluster");
+                }
+                columns[i] = table.column(names[i].trim());
+                variables.add(table.spec(columns[i], i));
+                if (columns[i] == table.partitionKey) {
+                    keyVariable = i;
+                }
+            }
+            if (keyVariable < 0) {
+                throw new IllegalArgumentException("Missing partition key " + table.columns.get(table.partitionKey));
+            }
+            return new Statement(table, true, columns, keyVariable, -1, false, -1, false,
+                    new RowsMetadata(variables, null, new int[] { keyVariable }, null),
+                    new RowsMetadata(0, null, null, null));
+        }
+        matcher = SELECT.matcher(query);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Statement not supported by the simulated cluster: " + query);
+        }
+        final Table table = table(matcher.group(2), matcher.group(3));
+        final String selection = matcher.group(1).trim();
+        final List<ColumnSpec> resultColumns = new ArrayList<ColumnSpec>();
+        final int[] columns;
+        if (COUNT.matcher(selection).matches()) {
+            columns = null;
+            resultColumns.add(new ColumnSpec(table.keyspace, table.name, "count", 0, BIGINT));
+        } else if (selection.equals("*")) {
+            columns = new int[table.columns.size()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = i;
+                resultColumns.add(table.spec(i, i));
+            }
+        } else {
+            final String[] names = selection.split(",");
+            columns = new int[names.length];
+            for (int i = 0; i < names.length; i++) {
+                columns[i] = table.column(names[i].trim());
+                resultColumns.add(table.spec(columns[i], i));
+            }
+        }
+        int keyVariable = -1;
+        int lowerVariable = -1;
+        int upperVariable = -1;
+        boolean lowerInclusive = false;
+        boolean upperInclusive = false;
+        final List<ColumnSpec> variables = new ArrayList<ColumnSpec>();
+        if (matcher.group(4) != null) {
+            for (final String condition : AND.split(matcher.group(4))) {
+                final Matcher parsed = CONDITION.matcher(condition);
+                if (!parsed.matches()) {
+                    throw new IllegalArgumentException("Condition not supported by the simulated cluster: "
+                            + condition);
+                }
+                final String operator = parsed.group(3);
+                final int variable = variables.size();
+                if (parsed.group(1) != null) {
+                    if (table.column(parsed.group(1)) != table.partitionKey || operator.equals("=")) {
+                        throw new IllegalArgumentException("Invalid token condition: " + condition);
+                    }
+                    variables.add(new ColumnSpec(table.keyspace, table.name, "partition key token", variable,
+                            BIGINT));
+                    if (operator.startsWith(">")) {
+                        lowerVariable = variable;
+                        lowerInclusive = operator.equals(">=");
+                    } else {
+                        upperVariable = variable;
+                        upperInclusive = operator.equals("<=");
+                    }
+                } else {
+                    if (table.column(parsed.group(2)) != table.partitionKey || !operator.equals("=")) {
+                        throw new IllegalArgumentException("Only the partition key can be restricted, with =: "
+                                + condition);
+                    }
+                    keyVariable = variable;
+                    variables.add(table.spec(table.partitionKey, variable));
+                }
+            }
+        }
+        return new Statement(table, false, columns, keyVariable, lowerVariable, lowerInclusive, upperVariable,
+                upperInclusive,
+                new RowsMetadata(variables, null, keyVariable < 0 ? null : new int[] { keyVariable }, null),
+                new RowsMetadata(resultColumns, null, null, null));
+    }
+
+    private Table table(final String keyspace, final String name) {
+        final Table table = this.tables.get(keyspace.toLowerCase() + "." + name.toLowerCase());
+        if (table == null) {
+            throw new IllegalArgumentException("Table " + keyspace + "." + name + " does not exist");
+        }
+        return table;
+    }
+
+    private long token(final ByteBuffer key) {
+        return ((Murmur3Token) this.tokenFactory.hash(key)).getValue();
+    }
+
+    private static byte[] md5(final String query) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(query.getBytes(StandardCharsets.UTF_8));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Table {
+        final String keyspace;
+        final String name;
+        final List<String> columns;
+        final List<RawType> types;
+        final int partitionKey;
+        /** token -> partition key -> row (rows whose keys have the same token share an entry) */
+        final ConcurrentNavigableMap<Long, ConcurrentMap<ByteBuffer, Row>> rows =
+                new ConcurrentSkipListMap<>();
+
+        Table(final String keyspace, final String name, final List<String> columns, final List<RawType> types,
+                final int partitionKey) {
+            this.keyspace = keyspace;
+            this.name = name;
+            this.columns = columns;
+            this.types = types;
+            this.partitionKey = partitionKey;
+        }
+
+        String fullName() {
+            return this.keyspace + "." + this.name;
+        }
+
+        int indexOf(final String column) {
+            return this.columns.indexOf(column.toLowerCase());
+        }
+
+        int column(final String column) {
+            final int index = indexOf(column);
+            if (index < 0) {
+                throw new IllegalArgumentException("Undefined column " + column + " in " + fullName());
+            }
+            return index;
+        }
+
+        ColumnSpec spec(final int column, final int index) {
+            return new ColumnSpec(this.keyspace, this.name, this.columns.get(column), index, this.types.get(column));
+        }
+    }
+
+    /**
+     * The values of the columns of a row, and the timestamps of their writes
+     */
+    private static class Row {
+        final ByteBuffer[] values;
+        final long[] timestamps;
+
+        Row(final int columns) {
+            this.values = new ByteBuffer[columns];
+            this.timestamps = new long[columns];
+            Arrays.fill(this.timestamps, Long.MIN_VALUE);
+        }
+
+        Row(final Row row) {
+            this.values = Arrays.copyOf(row.values, row.values.length);
+            this.timestamps = Arrays.copyOf(row.timestamps, row.timestamps.length);
+        }
+    }
+
+    private class Statement {
+        final Table table;
+        final boolean insert;
+        /** the column of each bind marker (insert) or selected column (select, null for a count) */
+        final int[] columns;
+        final int keyVariable;
+        final int lowerVariable;
+        final boolean lowerInclusive;
+        final int upperVariable;
+        final boolean upperInclusive;
+        final RowsMetadata variables;
+        final RowsMetadata result;
+
+        Statement(final Table table, final boolean insert, final int[] columns, final int keyVariable,
+                final int lowerVariable, final boolean lowerInclusive, final int upperVariable,
+                final boolean upperInclusive, final RowsMetadata variables, final RowsMetadata result) {
+            this.table = table;
+            this.insert = insert;
+            this.columns = columns;
+            this.keyVariable = keyVariable;
+            this.lowerVariable = lowerVariable;
+            this.lowerInclusive = lowerInclusive;
+            this.upperVariable = upperVariable;
+            this.upperInclusive = upperInclusive;
+            this.variables = variables;
+            this.result = result;
+        }
+
+        String keyColumnName() {
+            return this.table.columns.get(this.table.partitionKey);
+        }
+
+        Message execute(final List<ByteBuffer> values, final long timestamp) {
+            if (values.size() != this.variables.columnCount) {
+                throw new IllegalArgumentException("Expected " + this.variables.columnCount + " values, got "
+                        + values.size());
+            }
+            if (SimulatedStorage.this.tables.get(this.table.fullName()) != this.table) {
+                throw new IllegalArgumentException("Table " + this.table.fullName() + " does not exist");
+            }
+            return this.insert ? insert(values, timestamp) : select(values);
+        }
+
+        private Message insert(final List<ByteBuffer> values, final long timestamp) {
+            final ByteBuffer key = values.get(this.keyVariable);
+            if (key == null || key == ProtocolConstants.UNSET_VALUE) {
+                throw new IllegalArgumentException("Invalid null value for partition key " + keyColumnName());
+            }
+            final long writeTimestamp = timestamp != QueryOptions.NO_DEFAULT_TIMESTAMP
+                    ? timestamp : TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+            final ConcurrentMap<ByteBuffer, Row> partitions =
+                    this.table.rows.computeIfAbsent(token(key), t -> new ConcurrentHashMap<>());
+            partitions.compute(key, (k, previous) -> {
+                final Row row = previous == null ? new Row(this.table.columns.size()) : new Row(previous);
+                for (int i = 0; i < this.columns.length; i++) {
+                    final ByteBuffer value = values.get(i);
+                    final int column = this.columns[i];
+                    if (value != ProtocolConstants.UNSET_VALUE && writeTimestamp >= row.timestamps[column]) {
+                        row.values[column] = value;
+                        row.timestamps[column] = writeTimestamp;
+                    }
+                }
+                return row;
+            });
+            return com.datastax.oss.protocol.internal.response.result.Void.INSTANCE;
+        }
+
+        private Message select(final List<ByteBuffer> values) {
+            final Queue<List<ByteBuffer>> data = new ArrayDeque<List<ByteBuffer>>();
+            long count = 0;
+            if (this.keyVariable >= 0) {
+                final ByteBuffer key = values.get(this.keyVariable);
+                final ConcurrentMap<ByteBuffer, Row> partitions =
+                        key == null ? null : this.table.rows.get(token(key));
+                final Row row = partitions == null ? null : partitions.get(key);
+                if (row != null) {
+                    count += add(row, data);
+                }
+            } else {
+                NavigableMap<Long, ConcurrentMap<ByteBuffer, Row>> range = this.table.rows;
+                if (this.lowerVariable >= 0) {
+                    range = range.tailMap(values.get(this.lowerVariable).getLong(0), this.lowerInclusive);
+                }
+                if (this.upperVariable >= 0) {
+                    range = range.headMap(values.get(this.upperVariable).getLong(0), this.upperInclusive);
+                }
+                for (final ConcurrentMap<ByteBuffer, Row> partitions : range.values()) {
+                    for (final Row row : partitions.values()) {
+                        count += add(row, data);
+                    }
+                }
+            }
+            if (this.columns == null) {
+                final ByteBuffer value = ByteBuffer.allocate(8).putLong(0, count);
+                data.add(Collections.singletonList(value));
+            }
+            return new DefaultRows(this.result, data);
+        }
+
+        private int add(final Row row, final Queue<List<ByteBuffer>> data) {
+            if (this.columns != null) {
+                final List<ByteBuffer> selected = new ArrayList<ByteBuffer>(this.columns.length);
+                for (final int column : this.columns) {
+                    selected.add(row.values[column] == null ? null : row.values[column].duplicate());
+                }
+                data.add(selected);
+            }
+            return 1;
+        }
+    }
+}
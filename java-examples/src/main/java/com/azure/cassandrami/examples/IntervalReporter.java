@@ -0,0 +1,234 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.azure.cassandrami.examples;
+
+import com.azure.cassandrami.util.LatencyRecorder;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.api.core.metrics.DefaultNodeMetric;
+import com.datastax.oss.driver.api.core.metrics.Metrics;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically reports the throughput, errors, speculative executions and latency percentiles of
+ * the last interval, while a load test is running.
+ *
+ * <p>If the speculative execution policy is wrapped in a {@code TrackingSpeculativeExecutionPolicy},
+ * the reports also include the speculative executions that won (completed their request before the
+ * first execution) and the ones that were wasted. If the repository caches the rows it reads,
+ * they also include the hits, misses and evictions of the cache.
+ *
+ * <p>Reports are logged, and optionally appended to a CSV file (or a JSON lines file, if the file
+ * name ends with {@code .json}).
+ */
+public class IntervalReporter implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IntervalReporter.class);
+    private static final String CSV_HEADER = "time,reads_per_sec,writes_per_sec,errors,speculative_executions,"
+            + "speculative_wins,wasted_executions,speculative_win_rate,"
+            + "read_p50_ms,read_p90_ms,read_p99_ms,read_p999_ms,read_max_ms,"
+            + "write_p50_ms,write_p90_ms,write_p99_ms,write_p999_ms,write_max_ms,"
+            + "cache_hits,cache_misses,cache_evictions";
+
+    private final UserProfile u;
+    private final CqlSession session;
+    private final PrintWriter output;
+    private final boolean json;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "interval-reporter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private long lastReportNanos = System.nanoTime();
+    private long lastReads;
+    private long lastWrites;
+    private long lastErrors;
+    private long lastSpeculativeExecutions;
+    private long lastSpeculativeWins;
+    private long lastWastedExecutions;
+    private long lastTrackedExecutions;
+    private long lastCacheHits;
+    private long lastCacheMisses;
+    private long lastCacheEvictions;
+
+    public IntervalReporter(final UserProfile u, final CqlSession session, final String outputFile)
+            throws IOException {
+        this.u = u;
+        this.session = session;
+        this.json = outputFile != null && outputFile.endsWith(".json");
+        // the reports of successive runs are appended to the same file, under a single header
+        final boolean newFile = outputFile != null && new File(outputFile).length() == 0;
+        this.output = outputFile == null ? null : new PrintWriter(new FileWriter(outputFile, true));
+        if (newFile && !this.json) {
+            this.output.println(CSV_HEADER);
+            this.output.flush();
+        }
+    }
+
+    public void start(final long intervalSeconds) {
+        this.scheduler.scheduleAtFixedRate(this::report, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the periodic reports, and report the last interval. If the calling thread is interrupted while the
+     * current report completes, its interrupt status is restored.
+     */
+    @Override
+    public void close() {
+        this.scheduler.shutdown();
+        try {
+            this.scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        report();
+        if (this.output != null) {
+            this.output.close();
+        }
+    }
+
+    private synchronized void report() {
+        try {
+            final long now = System.nanoTime();
+            final double seconds = (now - this.lastReportNanos) / 1e9;
+            this.lastReportNanos = now;
+
+            final long reads = this.u.readCount.get();
+            final long writes = this.u.insertCount.get();
+            final long errors = this.u.exceptionCount.get();
+            final long speculativeExecutions = speculativeExecutions();
+            final double readRate = (reads - this.lastReads) / seconds;
+            final double writeRate = (writes - this.lastWrites) / seconds;
+            final long intervalErrors = errors - this.lastErrors;
+            final long intervalSpeculativeExecutions = speculativeExecutions - this.lastSpeculativeExecutions;
+            this.lastReads = reads;
+            this.lastWrites = writes;
+            this.lastErrors = errors;
+            this.lastSpeculativeExecutions = speculativeExecutions;
+
+            // only reported by TrackingSpeculativeExecutionPolicy
+            final long speculativeWins = gaugeValue("speculative-outcomes.wins");
+            final long wastedExecutions = gaugeValue("speculative-outcomes.wasted");
+            final long trackedExecutions = gaugeValue("speculative-outcomes.executions");
+            final long intervalSpeculativeWins = speculativeWins - this.lastSpeculativeWins;
+            final long intervalWastedExecutions = wastedExecutions - this.lastWastedExecutions;
+            final long intervalTrackedExecutions = trackedExecutions - this.lastTrackedExecutions;
+            final double winRate = intervalTrackedExecutions == 0
+                    ? 0 : (double) intervalSpeculativeWins / intervalTrackedExecutions;
+            this.lastSpeculativeWins = speculativeWins;
+            this.lastWastedExecutions = wastedExecutions;
+            this.lastTrackedExecutions = trackedExecutions;
+
+            // only reported if UserRepository caches rows
+            final long cacheHits = gaugeValue("user-cache.hits");
+            final long cacheMisses = gaugeValue("user-cache.misses");
+            final long cacheEvictions = gaugeValue("user-cache.evictions");
+            final long intervalCacheHits = cacheHits - this.lastCacheHits;
+            final long intervalCacheMisses = cacheMisses - this.lastCacheMisses;
+            final long intervalCacheEvictions = cacheEvictions - this.lastCacheEvictions;
+            this.lastCacheHits = cacheHits;
+            this.lastCacheMisses = cacheMisses;
+            this.lastCacheEvictions = cacheEvictions;
+
+            final Histogram readLatencies = this.u.readLatencies.intervalHistogram();
+            final String readSummary = LatencyRecorder.summary(readLatencies);
+            final String readPercentiles = percentiles(readLatencies);
+            final Histogram writeLatencies = this.u.writeLatencies.intervalHistogram();
+            final String writeSummary = LatencyRecorder.summary(writeLatencies);
+            final String writePercentiles = percentiles(writeLatencies);
+
+            LOGGER.info(String.format("[interval] %.0f reads/sec, %.0f writes/sec, %d errors, "
+                    + "%d speculative executions (%d won, %d wasted, %.1f%% win rate)", readRate, writeRate, intervalErrors,
+                    intervalSpeculativeExecutions, intervalSpeculativeWins, intervalWastedExecutions, winRate * 100));
+            LOGGER.info("[interval] reads: " + readSummary);
+            LOGGER.info("[interval] writes: " + writeSummary);
+            if (intervalCacheHits + intervalCacheMisses > 0) {
+                LOGGER.info(String.format("[interval] user cache: %d hits, %d misses (%.1f%% hit rate), %d evictions",
+                        intervalCacheHits, intervalCacheMisses,
+                        intervalCacheHits * 100.0 / (intervalCacheHits + intervalCacheMisses), intervalCacheEvictions));
+            }
+
+            if (this.output != null) {
+                if (this.json) {
+                    this.output.println(String.format(Locale.ROOT,
+                            "{\"time\":%d,\"readsPerSec\":%.1f,\"writesPerSec\":%.1f,"
+                            + "\"errors\":%d,\"speculativeExecutions\":%d,\"speculativeWins\":%d,"
+                            + "\"wastedExecutions\":%d,\"speculativeWinRate\":%.4f,\"read\":[%s],\"write\":[%s],"
+                            + "\"cacheHits\":%d,\"cacheMisses\":%d,\"cacheEvictions\":%d}",
+                            System.currentTimeMillis(), readRate, writeRate, intervalErrors,
+                            intervalSpeculativeExecutions, intervalSpeculativeWins, intervalWastedExecutions,
+                            winRate, readPercentiles, writePercentiles, intervalCacheHits, intervalCacheMisses,
+                            intervalCacheEvictions));
+                } else {
+                    this.output.println(String.format(Locale.ROOT, "%d,%.1f,%.1f,%d,%d,%d,%d,%.4f,%s,%s,%d,%d,%d",
+                            System.currentTimeMillis(), readRate, writeRate, intervalErrors,
+                            intervalSpeculativeExecutions, intervalSpeculativeWins, intervalWastedExecutions,
+                            winRate, readPercentiles, writePercentiles, intervalCacheHits, intervalCacheMisses,
+                            intervalCacheEvictions));
+                }
+                this.output.flush();
+            }
+        } catch (final Exception e) {
+            // never let an exception cancel the next reports
+            LOGGER.info("Interval report exception: " + e);
+        }
+    }
+
+    /**
+     * Sum of the speculative-executions node metric, which must be enabled in the driver configuration
+     */
+    private long speculativeExecutions() {
+        final Optional<Metrics> metrics = this.session.getMetrics();
+        if (!metrics.isPresent()) {
+            return 0;
+        }
+        long total = 0;
+        for (final Node node : this.session.getMetadata().getNodes().values()) {
+            final Optional<Counter> counter =
+                    metrics.get().getNodeMetric(node, DefaultNodeMetric.SPECULATIVE_EXECUTIONS);
+            if (counter.isPresent()) {
+                total += counter.get().getCount();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Value of a gauge of the session's metric registry, such as the speculative execution outcomes published by
+     * {@code TrackingSpeculativeExecutionPolicy}, or 0 if it is not registered
+     */
+    private long gaugeValue(final String name) {
+        final Optional<Metrics> metrics = this.session.getMetrics();
+        if (!metrics.isPresent()) {
+            return 0;
+        }
+        final Gauge<?> gauge = metrics.get().getRegistry().getGauges()
+                .get(this.session.getName() + "." + name);
+        return gauge == null ? 0 : ((Number) gauge.getValue()).longValue();
+    }
+
+    private static String percentiles(final Histogram histogram) {
+        return String.format(Locale.ROOT, "%.3f,%.3f,%.3f,%.3f,%.3f",
+                LatencyRecorder.toMillis(histogram.getValueAtPercentile(50)),
+                LatencyRecorder.toMillis(histogram.getValueAtPercentile(90)),
+                LatencyRecorder.toMillis(histogram.getValueAtPercentile(99)),
+                LatencyRecorder.toMillis(histogram.getValueAtPercentile(99.9)),
+                LatencyRecorder.toMillis(histogram.getMaxValue()));
+    }
+}
@@ -0,0 +1,255 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.azure.cassandrami.examples;
+
+import com.azure.cassandrami.repository.UserRepository;
+import com.azure.cassandrami.util.Configurations;
+import com.azure.cassandrami.util.InFlightLimiter;
+import com.azure.cassandrami.util.KeyDistribution;
+import com.azure.cassandrami.util.LatencyRecorder;
+import com.azure.cassandrami.util.RatePacer;
+import com.azure.cassandrami.util.UserStore;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.github.javafaker.Faker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a mix of reads, inserts of new keys and updates of existing keys for a fixed duration, optionally at a
+ * target rate, with the keys chosen according to a {@link KeyDistribution}.
+ *
+ * <p>Inserts add keys to the {@link UserStore} while it has room (see {@code workloadNewKeys}), then become
+ * updates. Reads and updates only pick the keys whose insert was recorded in the store. The writes of a key
+ * record it in the store and get their write timestamp in the same order, so that the row read back by the
+ * verification is the one recorded last, even when concurrent writes reach the database in another order.
+ *
+ * <p>The ratios and the target rate are read again when the configuration is reloaded (see
+ * {@link com.azure.cassandrami.util.ConfigWatcher}), and apply to the next operations.
+ */
+public class MixedWorkload {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MixedWorkload.class);
+    private static final int WRITE_LOCKS = 1024;
+
+    private final UserProfile u;
+    private final UserRepository repository;
+    private final InFlightLimiter limiter;
+    private final String insertStatement;
+    private final String selectStatement;
+    private final Configurations config;
+    private final long durationSeconds;
+    private volatile Mix mix;
+    private final RatePacer pacer;
+    private final KeyDistribution distribution;
+    private final String distributionName;
+    private final Faker faker = new Faker();
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong inserts = new AtomicLong();
+    private final AtomicLong updates = new AtomicLong();
+    private final LatencyRecorder readLatencies = new LatencyRecorder();
+    private final LatencyRecorder writeLatencies = new LatencyRecorder();
+    private final Object[] writeLocks = new Object[WRITE_LOCKS];
+    private final AtomicLong lastWriteTimestamp = new AtomicLong();
+
+    /**
+     * @param limiter bounds the requests in flight, or null to send blocking requests
+     */
+    public MixedWorkload(final UserProfile u, final UserRepository repository, final InFlightLimiter limiter,
+            final String insertStatement, final String selectStatement, final Configurations config)
+            throws IOException {
+        this.u = u;
+        this.repository = repository;
+        this.limiter = limiter;
+        this.insertStatement = insertStatement;
+        this.selectStatement = selectStatement;
+        this.config = config;
+        this.durationSeconds = Long.parseLong(config.getProperty("workloadDurationSeconds"));
+        this.mix = new Mix(config);
+        this.pacer = new RatePacer(this.mix.targetOpsPerSecond);
+        this.distributionName = config.getProperty("workloadKeyDistribution");
+        this.distribution = KeyDistribution.create(this.distributionName, u.users.size(),
+                Double.parseDouble(config.getProperty("workloadZipfianConstant")),
+                Double.parseDouble(config.getProperty("workloadHotKeyFraction")),
+                Double.parseDouble(config.getProperty("workloadHotOpsFraction")));
+        for (int i = 0; i < WRITE_LOCKS; i++) {
+            this.writeLocks[i] = new Object();
+        }
+    }
+
+    public void run(final int noOfThreads) throws InterruptedException {
+        final ExecutorService es = Executors.newFixedThreadPool(noOfThreads);
+        LOGGER.info(String.format("executing mixed workload for %d s: %s, %s keys...%n", this.durationSeconds,
+                this.mix, this.distributionName));
+        final Configurations.Listener listener = this::reload;
+        this.config.addListener(listener);
+        final long startTime = System.nanoTime();
+        final long deadline = startTime + TimeUnit.SECONDS.toNanos(this.durationSeconds);
+        for (int i = 0; i < noOfThreads; i++) {
+            es.execute(() -> {
+                try {
+                    while (System.nanoTime() - deadline < 0) {
+                        final long due = this.pacer.awaitNext();
+                        // with a rate limit, measure latencies from the intended start (see RatePacer)
+                        nextOperation(this.pacer.isLimited() ? due : -1);
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        es.shutdown();
+        final boolean finished = es.awaitTermination(this.durationSeconds + 300, TimeUnit.SECONDS);
+        this.config.removeListener(listener);
+        if (finished) {
+            if (this.limiter != null) {
+                this.limiter.awaitCompletion();
+            }
+            final double seconds = (System.nanoTime() - startTime) / 1e9;
+            LOGGER.info(String.format("Mixed workload: %d reads, %d inserts, %d updates in %.1f s (%.0f ops/sec)",
+                    this.reads.get(), this.inserts.get(), this.updates.get(), seconds,
+                    (this.reads.get() + this.inserts.get() + this.updates.get()) / seconds));
+            LOGGER.info("Mixed workload reads: " + LatencyRecorder.summary(this.readLatencies.totalHistogram()));
+            LOGGER.info("Mixed workload writes: " + LatencyRecorder.summary(this.writeLatencies.totalHistogram()));
+        }
+        LOGGER.info("mixed workload done." + "\n");
+    }
+
+    private void reload(final Configurations config) throws IOException {
+        final Mix mix = new Mix(config);
+        this.mix = mix;
+        this.pacer.setRate(mix.targetOpsPerSecond);
+        LOGGER.info("Mixed workload reconfigured: " + mix);
+    }
+
+    /**
+     * @param intendedStart the time the operation was due, or -1 to measure its latency from when it is sent
+     */
+    private void nextOperation(final long intendedStart) throws InterruptedException {
+        final UserStore users = this.u.users;
+        final Mix mix = this.mix;
+        final double operation = ThreadLocalRandom.current().nextDouble();
+        if (operation < mix.readRatio) {
+            final int index = this.distribution.nextIndex(users.publishedSize());
+            final BoundStatement bound = this.repository.bindSelectUser(this.selectStatement, users.getId(index));
+            execute(bound, true, this.reads, intendedStart);
+            return;
+        }
+        final String name = this.faker.name().lastName();
+        final String city = this.faker.address().city();
+        int index = operation < mix.readRatio + mix.insertRatio ? users.reserve(1) : -1;
+        final boolean insert = index >= 0;
+        final UUID id;
+        if (insert) {
+            id = users.newId(index);
+        } else {
+            index = this.distribution.nextIndex(users.publishedSize());
+            id = UUID.fromString(users.getId(index));
+        }
+        final BoundStatement bound;
+        // the database keeps the write with the highest timestamp: the one recorded last in the store (an
+        // insert publishes its key, which concurrent updates can then write)
+        synchronized (this.writeLocks[index & (WRITE_LOCKS - 1)]) {
+            users.set(index, id, name, city);
+            bound = this.repository.bindInsertUser(this.insertStatement, id.toString(), name, city)
+                    .setQueryTimestamp(nextWriteTimestamp());
+        }
+        execute(bound, false, insert ? this.inserts : this.updates, intendedStart);
+    }
+
+    /**
+     * @return the current time in microseconds, or 1 more than the last timestamp when the clock has not moved
+     */
+    private long nextWriteTimestamp() {
+        final long now = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+        return this.lastWriteTimestamp.updateAndGet(last -> Math.max(now, last + 1));
+    }
+
+    private void execute(final BoundStatement bound, final boolean read, final AtomicLong counter,
+            final long intendedStart) throws InterruptedException {
+        if (this.limiter == null) {
+            try {
+                final long start = intendedStart >= 0 ? intendedStart : System.nanoTime();
+                if (read) {
+                    this.repository.selectUser(bound);
+                } else {
+                    this.repository.insertUser(bound);
+                }
+                onSuccess(read, counter, System.nanoTime() - start);
+            } catch (final Exception e) {
+                this.u.exceptionCount.incrementAndGet();
+                LOGGER.info("Exception: " + e);
+            }
+            return;
+        }
+        final Node node = this.limiter.acquire(bound);
+        final long start = intendedStart >= 0 ? intendedStart : System.nanoTime();
+        final CompletionStage<?> result = read
+                ? this.repository.selectUserAsync(bound) : this.repository.insertUserAsync(bound);
+        result.whenComplete((r, error) -> {
+            final long duration = System.nanoTime() - start;
+            this.limiter.release(node);
+            if (error == null) {
+                this.limiter.onComplete(null);
+                onSuccess(read, counter, duration);
+            } else {
+                this.u.exceptionCount.incrementAndGet();
+                if (!this.limiter.onComplete(error)) {
+                    LOGGER.info("Exception: " + error);
+                }
+            }
+        });
+    }
+
+    private void onSuccess(final boolean read, final AtomicLong counter, final long duration) {
+        counter.incrementAndGet();
+        if (read) {
+            this.readLatencies.record(duration);
+            this.u.readLatencies.record(duration);
+            this.u.readCount.incrementAndGet();
+        } else {
+            this.writeLatencies.record(duration);
+            this.u.writeLatencies.record(duration);
+            this.u.insertCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * The proportions of the operations and their target rate, read together from the configuration
+     */
+    private static class Mix {
+        final double readRatio;
+        final double insertRatio;
+        final double targetOpsPerSecond;
+
+        Mix(final Configurations config) throws IOException {
+            final double read = Double.parseDouble(config.getProperty("workloadReadRatio"));
+            final double insert = Double.parseDouble(config.getProperty("workloadInsertRatio"));
+            final double update = Double.parseDouble(config.getProperty("workloadUpdateRatio"));
+            final double total = read + insert + update;
+            if (total <= 0) {
+                throw new IllegalArgumentException("The workload ratios must not all be 0");
+            }
+            this.readRatio = read / total;
+            this.insertRatio = insert / total;
+            this.targetOpsPerSecond = Double.parseDouble(config.getProperty("workloadTargetOpsPerSecond"));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.0f%% reads, %.0f%% inserts, %.0f%% updates, %s", this.readRatio * 100,
+                    this.insertRatio * 100, (1 - this.readRatio - this.insertRatio) * 100,
+                    this.targetOpsPerSecond > 0 ? "at most " + this.targetOpsPerSecond + " ops/sec" : "no rate limit");
+        }
+    }
+}
@@ -3,25 +3,42 @@
 
 package com.azure.cassandrami.examples;
 
+import com.azure.cassandrami.cluster.SimulatedCluster;
+import com.azure.cassandrami.repository.UserBatcher;
 import com.azure.cassandrami.repository.UserRepository;
+import com.azure.cassandrami.util.ConfigWatcher;
 import com.azure.cassandrami.util.Configurations;
+import com.azure.cassandrami.util.FaultInjectingSessionBuilder;
+import com.azure.cassandrami.util.InFlightLimiter;
+import com.azure.cassandrami.util.LatencyRecorder;
+import com.azure.cassandrami.util.RatePacer;
+import com.azure.cassandrami.util.UserStore;
+import com.azure.cassandrami.util.WorkerThreads;
 import com.datastax.oss.driver.api.core.CqlSession;
-import com.datastax.oss.driver.shaded.guava.common.collect.Lists;
+import com.datastax.oss.driver.api.core.CqlSessionBuilder;
+import com.datastax.oss.driver.api.core.cql.BatchStatement;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.internal.core.channel.DegradedNode;
+import com.datastax.oss.driver.internal.core.channel.FaultInjector;
+import com.datastax.oss.driver.internal.core.channel.RandomFaultInjector;
 import com.github.javafaker.Faker;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Queue;
+import java.util.Objects;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.HdrHistogram.Histogram;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,36 +51,44 @@ public class UserProfile {
     public int NUMBER_OF_THREADS = 1;
     public int NUMBER_OF_WRITES_PER_THREAD = 2;
 
-    Queue<String> docIDs = new ConcurrentLinkedQueue<String>();
+    UserStore users;
     AtomicInteger exceptionCount = new AtomicInteger(0);
     AtomicLong insertCount = new AtomicLong(0);
     AtomicInteger recordCount = new AtomicInteger(0);
     AtomicInteger readCount = new AtomicInteger(0);
     AtomicInteger verifyCount = new AtomicInteger(0);
+    AtomicInteger mismatchCount = new AtomicInteger(0);
+    AtomicInteger missingCount = new AtomicInteger(0);
     AtomicLong totalLatency = new AtomicLong(0);
-    Queue<Long> latencies = new ConcurrentLinkedQueue<Long>();
+    LatencyRecorder readLatencies = new LatencyRecorder();
+    LatencyRecorder writeLatencies = new LatencyRecorder();
     private static Configurations config = new Configurations();
+    private static SimulatedCluster simulatedCluster;
     private static final Logger LOGGER = LoggerFactory.getLogger(UserProfile.class);
 
     public void loadData(final String keyspace, final String table, final UserRepository repository,
             final UserProfile u, final String preparedStatement, final int noOfThreads,
-            final int noOfWritesPerThread) throws InterruptedException, NumberFormatException, IOException {
+            final int noOfWritesPerThread, final WorkerThreads.Kind workerThreads)
+            throws InterruptedException, NumberFormatException, IOException {
 
         final Faker faker = new Faker();
-        final ExecutorService es = Executors.newCachedThreadPool();
+        final ExecutorService es = WorkerThreads.newExecutor(workerThreads);
         int timeout = Integer.parseInt(config.getProperty("loadTimeout"));
         LOGGER.info("Loading data (will timeout after "+timeout+" minutes)....");
-        for (int i = 1; i <= noOfThreads; i++) {
+        final long testStartTime = System.nanoTime();
+        for (int i = 0; i < noOfThreads; i++) {
+            final int firstIndex = this.users.reserve(noOfWritesPerThread);
             final Runnable task = () -> {
-                for (int j = 1; j <= noOfWritesPerThread; j++) {
-                    final UUID guid = java.util.UUID.randomUUID();
-                    final String strGuid = guid.toString();
-                    this.docIDs.add(strGuid);
+                for (int index = firstIndex; index < firstIndex + noOfWritesPerThread; index++) {
+                    final UUID guid = this.users.newId(index);
+                    final String name = faker.name().lastName();
+                    final String city = faker.address().city();
+                    this.users.set(index, guid, name, city);
                     try {
-                        final String name = faker.name().lastName();
-                        final String city = faker.address().city();
                         u.recordCount.incrementAndGet();
+                        final long startTime = System.nanoTime();
                         repository.insertUser(preparedStatement, guid.toString(), name, city);
+                        u.writeLatencies.record(System.nanoTime() - startTime);
                         u.insertCount.incrementAndGet();
                     } catch (final Exception e) {
                         u.exceptionCount.incrementAndGet();
@@ -78,36 +103,174 @@ public class UserProfile {
         final boolean finished = es.awaitTermination(timeout, TimeUnit.MINUTES);
         if (finished) {
             LOGGER.info("number of records loaded: "+this.insertCount.get());
+            logThroughput("inserts", this.insertCount.get(), testStartTime);
+            LOGGER.info("Write latency: " + LatencyRecorder.summary(this.writeLatencies.totalHistogram()));
+            LOGGER.info("Finished executing all threads for loading data.");
+            Thread.sleep(3000);
+        }
+    }
+
+    /**
+     * Load data with asynchronous requests: each thread keeps sending inserts as long as the limiter
+     * allows more requests in flight, instead of waiting for each response.
+     */
+    public void loadDataAsync(final String keyspace, final String table, final UserRepository repository,
+            final UserProfile u, final InFlightLimiter limiter, final String preparedStatement,
+            final int noOfThreads, final int noOfWritesPerThread)
+            throws InterruptedException, NumberFormatException, IOException {
+
+        final Faker faker = new Faker();
+        final ExecutorService es = Executors.newFixedThreadPool(noOfThreads);
+        int timeout = Integer.parseInt(config.getProperty("loadTimeout"));
+        LOGGER.info("Loading data asynchronously (will timeout after "+timeout+" minutes)....");
+        final long startTime = System.nanoTime();
+        for (int i = 0; i < noOfThreads; i++) {
+            final int firstIndex = this.users.reserve(noOfWritesPerThread);
+            final Runnable task = () -> {
+                for (int index = firstIndex; index < firstIndex + noOfWritesPerThread; index++) {
+                    final UUID guid = this.users.newId(index);
+                    final String id = guid.toString();
+                    final String name = faker.name().lastName();
+                    final String city = faker.address().city();
+                    this.users.set(index, guid, name, city);
+                    u.recordCount.incrementAndGet();
+                    final BoundStatement bound = repository.bindInsertUser(preparedStatement, id, name, city);
+                    final Node node;
+                    try {
+                        node = limiter.acquire(bound);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    final long start = System.nanoTime();
+                    repository.insertUserAsync(bound).whenComplete((rs, error) -> {
+                        final long duration = System.nanoTime() - start;
+                        limiter.release(node);
+                        if (error == null) {
+                            limiter.onComplete(null);
+                            u.writeLatencies.record(duration);
+                            u.insertCount.incrementAndGet();
+                        } else {
+                            u.exceptionCount.incrementAndGet();
+                            if (!limiter.onComplete(error)) {
+                                LOGGER.info("Exception: " + error);
+                            }
+                        }
+                    });
+                }
+            };
+            es.execute(task);
+        }
+        es.shutdown();
+
+        final boolean finished = es.awaitTermination(timeout, TimeUnit.MINUTES);
+        if (finished) {
+            limiter.awaitCompletion();
+            LOGGER.info("number of records loaded: "+this.insertCount.get());
+            logThroughput("inserts", this.insertCount.get(), startTime);
+            LOGGER.info("Write latency: " + LatencyRecorder.summary(this.writeLatencies.totalHistogram()));
+            LOGGER.info("Finished executing all threads for loading data.");
+            Thread.sleep(3000);
+        }
+    }
+
+    /**
+     * Load data with asynchronous UNLOGGED batches, each containing rows of a single replica set, bounded by
+     * the limiter. This is the fastest way to seed a large table before running a test.
+     */
+    public void bulkLoadAsync(final String keyspace, final String table, final UserRepository repository,
+            final UserProfile u, final InFlightLimiter limiter, final String preparedStatement,
+            final int noOfThreads, final int noOfWritesPerThread, final int maxBatchRows, final int maxBatchBytes)
+            throws InterruptedException, NumberFormatException, IOException {
+
+        final Faker faker = new Faker();
+        final ExecutorService es = Executors.newFixedThreadPool(noOfThreads);
+        int timeout = Integer.parseInt(config.getProperty("loadTimeout"));
+        LOGGER.info("Bulk loading data in batches of up to " + maxBatchRows + " rows (will timeout after "
+                + timeout + " minutes)....");
+        final long startTime = System.nanoTime();
+        for (int i = 0; i < noOfThreads; i++) {
+            final int firstIndex = this.users.reserve(noOfWritesPerThread);
+            final Runnable task = () -> {
+                final UserBatcher batcher = repository.newBatcher(preparedStatement, maxBatchRows, maxBatchBytes);
+                try {
+                    for (int index = firstIndex; index < firstIndex + noOfWritesPerThread; index++) {
+                        final UUID guid = this.users.newId(index);
+                        final String name = faker.name().lastName();
+                        final String city = faker.address().city();
+                        this.users.set(index, guid, name, city);
+                        u.recordCount.incrementAndGet();
+                        final BatchStatement batch = batcher.add(guid.toString(), name, city);
+                        if (batch != null) {
+                            insertBatch(repository, u, limiter, batch);
+                        }
+                    }
+                    for (final BatchStatement batch : batcher.flush()) {
+                        insertBatch(repository, u, limiter, batch);
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            };
+            es.execute(task);
+        }
+        es.shutdown();
+
+        final boolean finished = es.awaitTermination(timeout, TimeUnit.MINUTES);
+        if (finished) {
+            limiter.awaitCompletion();
+            LOGGER.info("number of records loaded: "+this.insertCount.get());
+            logThroughput("inserts", this.insertCount.get(), startTime);
+            LOGGER.info("Batch write latency: " + LatencyRecorder.summary(this.writeLatencies.totalHistogram()));
             LOGGER.info("Finished executing all threads for loading data.");
             Thread.sleep(3000);
         }
     }
 
+    private static void insertBatch(final UserRepository repository, final UserProfile u,
+            final InFlightLimiter limiter, final BatchStatement batch) throws InterruptedException {
+        final Node node = limiter.acquire(batch);
+        final long start = System.nanoTime();
+        repository.insertBatchAsync(batch).whenComplete((rs, error) -> {
+            final long duration = System.nanoTime() - start;
+            limiter.release(node);
+            if (error == null) {
+                limiter.onComplete(null);
+                u.writeLatencies.record(duration);
+                u.insertCount.addAndGet(batch.size());
+            } else {
+                u.exceptionCount.incrementAndGet();
+                if (!limiter.onComplete(error)) {
+                    LOGGER.info("Exception: " + error);
+                }
+            }
+        });
+    }
+
     public void readTest(final String keyspace, final String table, final UserRepository repository,
-            final UserProfile u, final int noOfThreads, final int noOfWritesPerThread) throws InterruptedException, NumberFormatException, IOException {
+            final UserProfile u, final String preparedStatement, final int noOfThreads, final int noOfWritesPerThread,
+            final WorkerThreads.Kind workerThreads) throws InterruptedException, NumberFormatException, IOException {
 
         Configurations config = new Configurations();
-        List<String> list = new ArrayList<String>();
-        for (final String id : this.docIDs) {
-            list.add(id);
-        }
+        final int size = this.users.size();
 
-        final ExecutorService es = Executors.newCachedThreadPool();
-        List<List<String>> lists = Lists.partition(list, NUMBER_OF_WRITES_PER_THREAD);
-        LOGGER.info("executing reads..." + "\n");
+        final ExecutorService es = WorkerThreads.newExecutor(workerThreads);
+        LOGGER.info("executing reads on " + workerThreads.name().toLowerCase() + " threads..." + "\n");
         int iterations = Integer.parseInt(config.getProperty("iterations"));
+        final long testStartTime = System.nanoTime();
         for (int i=0; i<iterations; i++){
-            for (List<String> splitList : lists) {
+            for (int from = 0; from < size; from += NUMBER_OF_WRITES_PER_THREAD) {
+                final int start = from;
+                final int end = Math.min(size, from + NUMBER_OF_WRITES_PER_THREAD);
                 final Runnable task = () -> {
-                    for (final String id : splitList) {                 
+                    for (int index = start; index < end; index++) {
                         try{
-                            final long startTime = System.currentTimeMillis();
-                            repository.selectUser(id, keyspace, table);
-                            final long endTime = System.currentTimeMillis();
-                            final long duration = (endTime - startTime);
-                            latencies.add(duration);
+                            final long startTime = System.nanoTime();
+                            repository.selectUser(preparedStatement, this.users.getId(index));
+                            final long duration = System.nanoTime() - startTime;
+                            u.readLatencies.record(duration);
                             u.readCount.incrementAndGet();
-                            this.totalLatency.getAndAdd(duration); 
+                            this.totalLatency.getAndAdd(duration);
                         }
                         catch(Exception e)
                         {
@@ -123,32 +286,303 @@ public class UserProfile {
         es.shutdown();
         final boolean finished = es.awaitTermination(5, TimeUnit.MINUTES);
         if (finished) {
-            List<Long> latencies = new ArrayList<Long>();
-            for (final Long id : this.latencies) {
-                latencies.add(id);
-            }
-            LOGGER.info("Total number of reads executed: "+u.readCount.get());
-            LOGGER.info("p50 latency: "+percentile(latencies, 50));
-            LOGGER.info("p99 latency: "+percentile(latencies, 99));
-            try{
-                Long min = Collections.min(latencies);
-                Long max = Collections.max(latencies);
-                LOGGER.info("Max read duration: "+max);
-                LOGGER.info("Min read duration: "+min);
-            }
-            catch(Exception e){
-                LOGGER.info("Min/Max exception: "+e);
-            }
+            logReadResults(u, testStartTime);
+            Thread.sleep(1000);
+        }
+        LOGGER.info("load test done." + "\n");
+    }
+
+    /**
+     * Read the loaded rows with asynchronous requests, bounded by the limiter.
+     */
+    public void readTestAsync(final String keyspace, final String table, final UserRepository repository,
+            final UserProfile u, final InFlightLimiter limiter, final String preparedStatement,
+            final int noOfThreads) throws InterruptedException, NumberFormatException, IOException {
+
+        final int size = this.users.size();
+        final int chunk = Math.max(1, (size + noOfThreads - 1) / noOfThreads);
+        final ExecutorService es = Executors.newFixedThreadPool(noOfThreads);
+        LOGGER.info("executing asynchronous reads..." + "\n");
+        int iterations = Integer.parseInt(config.getProperty("iterations"));
+        final long startTime = System.nanoTime();
+        for (int from = 0; from < size; from += chunk) {
+            final int firstIndex = from;
+            final int endIndex = Math.min(size, from + chunk);
+            final Runnable task = () -> {
+                for (int i = 0; i < iterations; i++) {
+                    for (int index = firstIndex; index < endIndex; index++) {
+                        final BoundStatement bound =
+                                repository.bindSelectUser(preparedStatement, this.users.getId(index));
+                        final Node node;
+                        try {
+                            node = limiter.acquire(bound);
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                        final long start = System.nanoTime();
+                        repository.selectUserAsync(bound).whenComplete((name, error) -> {
+                            final long duration = System.nanoTime() - start;
+                            limiter.release(node);
+                            if (error == null) {
+                                limiter.onComplete(null);
+                                u.readLatencies.record(duration);
+                                u.readCount.incrementAndGet();
+                                this.totalLatency.getAndAdd(duration);
+                            } else {
+                                u.exceptionCount.incrementAndGet();
+                                if (!limiter.onComplete(error)) {
+                                    LOGGER.info("Exception: " + error);
+                                }
+                            }
+                        });
+                    }
+                }
+            };
+            es.execute(task);
+        }
 
+        es.shutdown();
+        final boolean finished = es.awaitTermination(5, TimeUnit.MINUTES);
+        if (finished) {
+            limiter.awaitCompletion();
+            logReadResults(u, startTime);
+            Thread.sleep(1000);
+        }
+        LOGGER.info("load test done." + "\n");
+    }
+
+    /**
+     * Read the loaded rows in open loop: requests are sent at a fixed rate, whether or not the previous ones
+     * completed, and their latency is measured from the time they were scheduled at, not from the time they were
+     * actually sent. A stall (of a replica, or of the client itself) is then reflected in the latency of every
+     * request scheduled during the stall, instead of silently lowering the request rate ("coordinated omission").
+     */
+    public void readTestOpenLoop(final String keyspace, final String table, final UserRepository repository,
+            final UserProfile u, final InFlightLimiter limiter, final String preparedStatement,
+            final int noOfThreads, final double readsPerSecond)
+            throws InterruptedException, NumberFormatException, IOException {
 
+        final int size = this.users.size();
+        final int chunk = Math.max(1, (size + noOfThreads - 1) / noOfThreads);
+        final ExecutorService es = Executors.newFixedThreadPool(noOfThreads);
+        final RatePacer pacer = new RatePacer(readsPerSecond);
+        final Configurations.Listener rateListener = c -> {
+            final double rate = Double.parseDouble(c.getProperty("openLoopReadsPerSecond"));
+            if (rate > 0) {
+                pacer.setRate(rate);
+                LOGGER.info("Open loop read rate set to " + rate + " reads/sec");
+            }
+        };
+        config.addListener(rateListener);
+        final LatencyRecorder serviceTimes = new LatencyRecorder();
+        LOGGER.info("executing open loop reads at " + readsPerSecond + " reads/sec..." + "\n");
+        int iterations = Integer.parseInt(config.getProperty("iterations"));
+        final long startTime = System.nanoTime();
+        for (int from = 0; from < size; from += chunk) {
+            final int firstIndex = from;
+            final int endIndex = Math.min(size, from + chunk);
+            final Runnable task = () -> {
+                for (int i = 0; i < iterations; i++) {
+                    for (int index = firstIndex; index < endIndex; index++) {
+                        final BoundStatement bound =
+                                repository.bindSelectUser(preparedStatement, this.users.getId(index));
+                        final long intendedStart;
+                        final Node node;
+                        try {
+                            intendedStart = pacer.awaitNext();
+                            node = limiter.acquire(bound);
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                        final long start = System.nanoTime();
+                        repository.selectUserAsync(bound).whenComplete((name, error) -> {
+                            final long end = System.nanoTime();
+                            limiter.release(node);
+                            if (error == null) {
+                                limiter.onComplete(null);
+                                u.readLatencies.record(end - intendedStart);
+                                serviceTimes.record(end - start);
+                                u.readCount.incrementAndGet();
+                                this.totalLatency.getAndAdd(end - intendedStart);
+                            } else {
+                                u.exceptionCount.incrementAndGet();
+                                if (!limiter.onComplete(error)) {
+                                    LOGGER.info("Exception: " + error);
+                                }
+                            }
+                        });
+                    }
+                }
+            };
+            es.execute(task);
+        }
+
+        es.shutdown();
+        // the schedule itself lasts size * iterations / readsPerSecond
+        final long scheduleSeconds = (long) ((double) size * iterations / readsPerSecond);
+        final boolean finished = es.awaitTermination(scheduleSeconds + 300, TimeUnit.SECONDS);
+        config.removeListener(rateListener);
+        if (finished) {
+            limiter.awaitCompletion();
+            logReadResults(u, startTime);
+            LOGGER.info("Service time (from send, not corrected for coordinated omission): "
+                    + LatencyRecorder.summary(serviceTimes.totalHistogram()));
             Thread.sleep(1000);
         }
         LOGGER.info("load test done." + "\n");
     }
 
-    public static long percentile(List<Long> latencies, double percentile) {
-        int index = (int) Math.ceil(percentile / 100.0 * latencies.size());
-        return latencies.get(index-1);
+    /**
+     * Read back all the loaded rows with asynchronous requests, bounded by the limiter, and check that
+     * they have the values that were written.
+     */
+    public void verifyAsync(final String keyspace, final String table, final UserRepository repository,
+            final UserProfile u, final InFlightLimiter limiter, final String preparedStatement,
+            final int noOfThreads) throws InterruptedException {
+
+        final int size = this.users.size();
+        final int chunk = Math.max(1, (size + noOfThreads - 1) / noOfThreads);
+        final ExecutorService es = Executors.newFixedThreadPool(noOfThreads);
+        LOGGER.info("verifying " + size + " rows..." + "\n");
+        final long startTime = System.nanoTime();
+        for (int from = 0; from < size; from += chunk) {
+            final int start = from;
+            final int end = Math.min(size, from + chunk);
+            final Runnable task = () -> {
+                for (int i = start; i < end; i++) {
+                    final int index = i;
+                    final BoundStatement bound = repository.bindSelectUser(preparedStatement, this.users.getId(index));
+                    final Node node;
+                    try {
+                        node = limiter.acquire(bound);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    repository.selectUserRowAsync(bound).whenComplete((row, error) -> {
+                        limiter.release(node);
+                        if (error != null) {
+                            u.exceptionCount.incrementAndGet();
+                            if (!limiter.onComplete(error)) {
+                                LOGGER.info("Exception: " + error);
+                            }
+                            return;
+                        }
+                        limiter.onComplete(null);
+                        u.verifyCount.incrementAndGet();
+                        if (row == null) {
+                            u.missingCount.incrementAndGet();
+                        } else if (!Objects.equals(this.users.getName(index), row.getString("user_name"))
+                                || !Objects.equals(this.users.getCity(index), row.getString("user_bcity"))) {
+                            u.mismatchCount.incrementAndGet();
+                        }
+                    });
+                }
+            };
+            es.execute(task);
+        }
+
+        es.shutdown();
+        final boolean finished = es.awaitTermination(5, TimeUnit.MINUTES);
+        if (finished) {
+            limiter.awaitCompletion();
+            LOGGER.info("Verified rows: " + u.verifyCount.get() + ", mismatches: " + u.mismatchCount.get()
+                    + ", missing: " + u.missingCount.get());
+            logThroughput("verifications", u.verifyCount.get(), startTime);
+        }
+        LOGGER.info("verification done." + "\n");
+    }
+
+    /**
+     * Run the blocking read test once per kind of worker threads, and compare the results
+     */
+    public void compareReadTests(final String keyspace, final String table, final UserRepository repository,
+            final UserProfile u, final String preparedStatement, final int noOfThreads, final int noOfWritesPerThread,
+            final List<WorkerThreads.Kind> kinds) throws InterruptedException, NumberFormatException, IOException {
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final List<String> results = new ArrayList<String>();
+        for (final WorkerThreads.Kind kind : kinds) {
+            final Histogram before = u.readLatencies.totalHistogram();
+            final long readsBefore = u.readCount.get();
+            threads.resetPeakThreadCount();
+            final long startTime = System.nanoTime();
+            readTest(keyspace, table, repository, u, preparedStatement, noOfThreads, noOfWritesPerThread, kind);
+            final double seconds = (System.nanoTime() - startTime) / 1e9;
+            final Histogram latencies = u.readLatencies.totalHistogram();
+            latencies.subtract(before);
+            final long reads = u.readCount.get() - readsBefore;
+            results.add(String.format("%-8s threads: %d reads, %.0f reads/sec, peak platform threads %d, %s",
+                    kind.name().toLowerCase(), reads, reads / seconds, threads.getPeakThreadCount(),
+                    LatencyRecorder.summary(latencies)));
+        }
+        LOGGER.info("Read test comparison (including the 1 s pause after each test):");
+        for (final String result : results) {
+            LOGGER.info(result);
+        }
+    }
+
+    private void logReadResults(final UserProfile u, final long startTime) {
+        final Histogram latencies = u.readLatencies.totalHistogram();
+        LOGGER.info("Total number of reads executed: "+u.readCount.get());
+        logThroughput("reads", u.readCount.get(), startTime);
+        if (latencies.getTotalCount() == 0) {
+            return;
+        }
+        LOGGER.info(String.format("p50 latency: %.2f ms", LatencyRecorder.toMillis(latencies.getValueAtPercentile(50))));
+        LOGGER.info(String.format("p90 latency: %.2f ms", LatencyRecorder.toMillis(latencies.getValueAtPercentile(90))));
+        LOGGER.info(String.format("p99 latency: %.2f ms", LatencyRecorder.toMillis(latencies.getValueAtPercentile(99))));
+        LOGGER.info(String.format("p99.9 latency: %.2f ms", LatencyRecorder.toMillis(latencies.getValueAtPercentile(99.9))));
+        LOGGER.info(String.format("Max read duration: %.2f ms", LatencyRecorder.toMillis(latencies.getMaxValue())));
+        LOGGER.info(String.format("Min read duration: %.2f ms", LatencyRecorder.toMillis(latencies.getMinValue())));
+    }
+
+    private static void logThroughput(final String operation, final long count, final long startTime) {
+        final double seconds = (System.nanoTime() - startTime) / 1e9;
+        LOGGER.info(String.format("Throughput: %d %s in %.1f s (%.0f ops/sec)", count, operation, seconds,
+                seconds > 0 ? count / seconds : 0));
+    }
+
+    /**
+     * Create a session builder that degrades the responses of nodeToDegrade, if one is configured, or that connects
+     * to a simulated cluster started in process, if simulatedCluster is set
+     *
+     * <p>The degraded node, and how it is degraded, can then be changed by reloading the configuration (if no
+     * node is configured at startup, the session is built without fault injection, and none can be added).
+     */
+    private static CqlSessionBuilder sessionBuilder() throws IOException {
+        if (Boolean.parseBoolean(config.getProperty("simulatedCluster"))) {
+            simulatedCluster = SimulatedCluster.fromConfig(config);
+            simulatedCluster.start();
+            LOGGER.info("Connecting to the simulated cluster (nodeToDegrade is ignored, degrade the simulated nodes "
+                    + "instead)");
+            return CqlSession.builder()
+                    .addContactPoints(simulatedCluster.getContactPoints())
+                    .withConfigLoader(SimulatedCluster.driverConfigLoader());
+        }
+        String nodeToDegrade = config.getProperty("nodeToDegrade");
+        if (nodeToDegrade == null || nodeToDegrade.trim().isEmpty()) {
+            return CqlSession.builder();
+        }
+        LOGGER.info("Responses from node " + nodeToDegrade + " will be artificially degraded");
+        final DegradedNode degradedNode = new DegradedNode(InetAddress.getByName(nodeToDegrade.trim()),
+                faultInjector(config));
+        config.addListener(c -> {
+            final String node = c.getProperty("nodeToDegrade");
+            final boolean none = node == null || node.trim().isEmpty();
+            degradedNode.set(none ? null : InetAddress.getByName(node.trim()), faultInjector(c));
+            LOGGER.info(none ? "No node is degraded anymore" : "Responses from node " + node + " are now degraded");
+        });
+        return new FaultInjectingSessionBuilder(degradedNode);
+    }
+
+    private static FaultInjector faultInjector(final Configurations config) throws IOException {
+        return new RandomFaultInjector(
+                Long.parseLong(config.getProperty("degradeDelayMillis")),
+                Double.parseDouble(config.getProperty("degradeErrorRate")),
+                Double.parseDouble(config.getProperty("degradeDropRate")));
     }
 
     public static void main(final String[] s) throws Exception {
@@ -158,10 +592,32 @@ public class UserProfile {
         final String table = "user";
         String DC = config.getProperty("DC");
         LOGGER.info("Creating Cassandra session...");
-        CqlSession cassandraSource = CqlSession.builder().withLocalDatacenter(DC).build();
-        int NUMBER_OF_WRITES_PER_THREAD = Integer.parseInt(config.getProperty("threads"));
-        int NUMBER_OF_THREADS = Integer.parseInt(config.getProperty("records"));        
+        CqlSession cassandraSource = sessionBuilder().withLocalDatacenter(DC).build();
+        int NUMBER_OF_THREADS = Integer.parseInt(config.getProperty("threads"));
+        int NUMBER_OF_WRITES_PER_THREAD = Integer.parseInt(config.getProperty("records"));
+        final List<WorkerThreads.Kind> workerThreads = new ArrayList<WorkerThreads.Kind>();
+        for (final String kind : config.getProperty("workerThreads").trim().split("[,\\s]+")) {
+            workerThreads.add(WorkerThreads.Kind.parse(kind));
+        }        
         final UserRepository sourcerepository = new UserRepository(cassandraSource);
+        if (Boolean.parseBoolean(config.getProperty("userCacheEnabled"))) {
+            sourcerepository.cacheUsers(Long.parseLong(config.getProperty("userCacheMaxBytes")),
+                    Long.parseLong(config.getProperty("userCacheTtlSeconds")));
+        }
+        final String keySeed = config.getProperty("keySeed");
+        final int capacity = NUMBER_OF_THREADS * NUMBER_OF_WRITES_PER_THREAD
+                + Integer.parseInt(config.getProperty("workloadNewKeys"));
+        u.users = keySeed == null || keySeed.trim().isEmpty()
+                ? new UserStore(capacity) : new UserStore(capacity, Long.parseLong(keySeed.trim()));
+        final long reportInterval = Long.parseLong(config.getProperty("reportIntervalSeconds"));
+        final IntervalReporter reporter = reportInterval > 0
+                ? new IntervalReporter(u, cassandraSource, config.getProperty("reportFile")) : null;
+        // settings can only be reloaded from an external file (-Dconfig.file=...)
+        final ConfigWatcher configWatcher =
+                config.getFile() != null ? new ConfigWatcher(config, cassandraSource) : null;
+        if (configWatcher != null) {
+            configWatcher.start();
+        }
 
         try {
 
@@ -183,12 +639,66 @@ public class UserProfile {
             // Setup load test 
             final String loadTestPreparedStatement = "insert into " + keyspace + "." + table + " (user_bcity,user_id,"
                     + "user_name) VALUES (?,?,?)";                   
+            final String readTestPreparedStatement = "select * from " + keyspace + "." + table
+                    + " where user_id = ?";
 
-            // Run Load Test - Insert rows into user table
-            u.loadData(keyspace, table, sourcerepository, u, loadTestPreparedStatement, 
-                    NUMBER_OF_THREADS, NUMBER_OF_WRITES_PER_THREAD);
-                    Thread.sleep(3000);
-            u.readTest(keyspace, table, sourcerepository, u, NUMBER_OF_THREADS, NUMBER_OF_WRITES_PER_THREAD);
+            if (reporter != null) {
+                reporter.start(reportInterval);
+            }
+            final InFlightLimiter limiter = new InFlightLimiter(cassandraSource,
+                    Integer.parseInt(config.getProperty("maxInFlight")),
+                    Integer.parseInt(config.getProperty("maxInFlightPerNode")));
+            final boolean asyncMode = Boolean.parseBoolean(config.getProperty("asyncMode"));
+            if (Boolean.parseBoolean(config.getProperty("bulkLoad"))) {
+                u.bulkLoadAsync(keyspace, table, sourcerepository, u, limiter, loadTestPreparedStatement,
+                        NUMBER_OF_THREADS, NUMBER_OF_WRITES_PER_THREAD,
+                        Integer.parseInt(config.getProperty("bulkBatchRows")),
+                        Integer.parseInt(config.getProperty("bulkBatchBytes")));
+            } else if (asyncMode) {
+                u.loadDataAsync(keyspace, table, sourcerepository, u, limiter, loadTestPreparedStatement,
+                        NUMBER_OF_THREADS, NUMBER_OF_WRITES_PER_THREAD);
+            } else {
+                // Run Load Test - Insert rows into user table
+                u.loadData(keyspace, table, sourcerepository, u, loadTestPreparedStatement,
+                        NUMBER_OF_THREADS, NUMBER_OF_WRITES_PER_THREAD, workerThreads.get(0));
+            }
+            Thread.sleep(3000);
+            final double openLoopReadsPerSecond = Double.parseDouble(config.getProperty("openLoopReadsPerSecond"));
+            if (openLoopReadsPerSecond > 0) {
+                u.readTestOpenLoop(keyspace, table, sourcerepository, u, limiter, readTestPreparedStatement,
+                        NUMBER_OF_THREADS, openLoopReadsPerSecond);
+            } else if (asyncMode) {
+                u.readTestAsync(keyspace, table, sourcerepository, u, limiter, readTestPreparedStatement,
+                        NUMBER_OF_THREADS);
+            } else if (workerThreads.size() > 1) {
+                u.compareReadTests(keyspace, table, sourcerepository, u, readTestPreparedStatement, NUMBER_OF_THREADS,
+                        NUMBER_OF_WRITES_PER_THREAD, workerThreads);
+            } else {
+                u.readTest(keyspace, table, sourcerepository, u, readTestPreparedStatement, NUMBER_OF_THREADS,
+                        NUMBER_OF_WRITES_PER_THREAD, workerThreads.get(0));
+            }
+            if (Long.parseLong(config.getProperty("workloadDurationSeconds")) > 0) {
+                new MixedWorkload(u, sourcerepository, asyncMode ? limiter : null, loadTestPreparedStatement,
+                        readTestPreparedStatement, config).run(NUMBER_OF_THREADS);
+            }
+            if (Boolean.parseBoolean(config.getProperty("verify"))) {
+                u.verifyAsync(keyspace, table, sourcerepository, u, limiter, readTestPreparedStatement,
+                        NUMBER_OF_THREADS);
+            }
+            if (sourcerepository.getUserCache() != null) {
+                LOGGER.info("User cache: " + sourcerepository.getUserCache());
+            }
+            if (reporter != null) {
+                reporter.close();
+            }
+            if (configWatcher != null) {
+                configWatcher.close();
+            }
+            if (simulatedCluster != null) {
+                // the session would keep trying to reconnect to the stopped nodes
+                cassandraSource.close();
+                simulatedCluster.close();
+            }
         } catch (final Exception e) {
             LOGGER.info("Main Exception " + e);
         }
@@ -0,0 +1,153 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.azure.cassandrami.repository;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.datastax.oss.driver.api.core.metadata.TokenMap;
+import com.datastax.oss.driver.api.core.metadata.token.TokenRange;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Full scan of a table, split into token ranges that are read in parallel.
+ *
+ * <p>Each range query is routed to the replicas owning the range, and paged: at most one page per
+ * range in flight is held in memory, however large the table is.
+ *
+ * <p>Up to {@code parallelism} ranges are read at the same time, each by a chain of queries that moves
+ * on to the next range once the last page of its range was read. The consumer is called from the
+ * driver's I/O threads by all the chains concurrently, so it must be thread-safe.
+ */
+class TokenRangeScan {
+
+    private final CqlSession session;
+    private final String select;
+    private final int parallelism;
+    private final int pageSize;
+    private final Consumer<Row> consumer;
+    private final List<BoundStatement> statements = new ArrayList<>();
+    private final AtomicInteger nextStatement = new AtomicInteger();
+    private final AtomicInteger runningChains = new AtomicInteger();
+    private final AtomicLong rowCount = new AtomicLong();
+    private final CompletableFuture<Long> result = new CompletableFuture<>();
+
+    /**
+     * @param select       the query to run on each range, without WHERE clause
+     * @param partitionKey the partition key columns, as they must appear in {@code token(...)}
+     */
+    TokenRangeScan(final CqlSession session, final String select, final String partitionKey,
+            final int parallelism, final int pageSize, final Consumer<Row> consumer) {
+        this.session = session;
+        this.select = select;
+        this.parallelism = parallelism;
+        this.pageSize = pageSize;
+        this.consumer = consumer;
+
+        final Optional<TokenMap> tokenMap = session.getMetadata().getTokenMap();
+        // the token ranges are empty until the token map was computed from the cluster metadata
+        final int ranges = tokenMap.isPresent() ? tokenMap.get().getTokenRanges().size() : 0;
+        if (ranges == 0) {
+            // token metadata is disabled or not available yet: fall back to a single (still paged) query
+            this.statements.add(prepare("").bind());
+            return;
+        }
+        final String token = "token(" + partitionKey + ")";
+        final PreparedStatement bounded = prepare(" WHERE " + token + " > ? AND " + token + " <= ?");
+        final PreparedStatement fromStart = prepare(" WHERE " + token + " > ?");
+        final PreparedStatement toEnd = prepare(" WHERE " + token + " <= ?");
+
+        // split each range so that there are enough ranges to keep all the parallel queries busy
+        final int splits = Math.max(1, (parallelism * 4 + ranges - 1) / ranges);
+        for (final TokenRange range : tokenMap.get().getTokenRanges()) {
+            final List<TokenRange> split = splits == 1 ? Collections.singletonList(range) : range.splitEvenly(splits);
+            for (final TokenRange subRange : split) {
+                if (subRange.isFullRing()) {
+                    this.statements.add(prepare("").bind());
+                } else if (subRange.isWrappedAround()) {
+                    // (start, end of ring] and [start of ring, end]
+                    this.statements.add(fromStart.bind()
+                            .setToken(0, subRange.getStart())
+                            .setRoutingToken(subRange.getEnd()));
+                    this.statements.add(toEnd.bind()
+                            .setToken(0, subRange.getEnd())
+                            .setRoutingToken(subRange.getEnd()));
+                } else {
+                    this.statements.add(bounded.bind()
+                            .setToken(0, subRange.getStart())
+                            .setToken(1, subRange.getEnd())
+                            .setRoutingToken(subRange.getEnd()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Start the scan
+     *
+     * @return the number of rows passed to the consumer, once all the ranges were read
+     */
+    CompletionStage<Long> run() {
+        final int chains = Math.min(this.parallelism, this.statements.size());
+        this.runningChains.set(chains);
+        for (int i = 0; i < chains; i++) {
+            nextRange();
+        }
+        return this.result;
+    }
+
+    private void nextRange() {
+        final int index = this.nextStatement.getAndIncrement();
+        if (index >= this.statements.size()) {
+            if (this.runningChains.decrementAndGet() == 0) {
+                this.result.complete(this.rowCount.get());
+            }
+            return;
+        }
+        final BoundStatement statement = this.statements.get(index)
+                .setPageSize(this.pageSize)
+                .setIdempotent(true);
+        this.session.executeAsync(statement).whenComplete(this::onPage);
+    }
+
+    private void onPage(final AsyncResultSet page, final Throwable error) {
+        if (error != null) {
+            this.result.completeExceptionally(error);
+            return;
+        }
+        if (this.result.isDone()) {
+            // another range failed: stop
+            return;
+        }
+        try {
+            for (final Row row : page.currentPage()) {
+                this.consumer.accept(row);
+                this.rowCount.incrementAndGet();
+            }
+        } catch (final RuntimeException e) {
+            this.result.completeExceptionally(e);
+            return;
+        }
+        if (page.hasMorePages()) {
+            page.fetchNextPage().whenComplete(this::onPage);
+        } else {
+            nextRange();
+        }
+    }
+
+    private PreparedStatement prepare(final String where) {
+        return this.session.prepare(this.select + where);
+    }
+}
@@ -0,0 +1,114 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.azure.cassandrami.repository;
+
+import com.datastax.oss.driver.api.core.CqlIdentifier;
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.BatchStatement;
+import com.datastax.oss.driver.api.core.cql.BatchType;
+import com.datastax.oss.driver.api.core.cql.BatchableStatement;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.api.core.metadata.TokenMap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Groups the rows to insert by replica set into UNLOGGED batches, so that each batch is written by
+ * a single set of replicas (its coordinator is then one of them, and no row has to be forwarded to
+ * other nodes).
+ *
+ * <p>A batch is emitted as soon as it reaches {@code maxBatchRows} rows, or {@code maxBatchBytes}
+ * bytes of bound values (large batches put pressure on the coordinator, see
+ * {@code batch_size_warn_threshold_in_kb} in cassandra.yaml).
+ *
+ * <p>This class is not thread-safe: use one instance per loading thread.
+ */
+public class UserBatcher {
+
+    private final CqlSession session;
+    private final UserRepository repository;
+    private final String preparedStatement;
+    private final int maxBatchRows;
+    private final int maxBatchBytes;
+    private final Map<Set<Node>, PendingBatch> pending = new HashMap<>();
+
+    UserBatcher(final CqlSession session, final UserRepository repository, final String preparedStatement,
+            final int maxBatchRows, final int maxBatchBytes) {
+        this.session = session;
+        this.repository = repository;
+        this.preparedStatement = preparedStatement;
+        this.maxBatchRows = maxBatchRows;
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * Add a row to the batch of its replica set
+     *
+     * @return the batch, if it is full after adding this row, otherwise null
+     */
+    public BatchStatement add(final String id, final String name, final String city) {
+        final BoundStatement bound = this.repository.bindInsertUser(this.preparedStatement, id, name, city);
+        final Set<Node> replicas = replicas(bound);
+        PendingBatch batch = this.pending.get(replicas);
+        if (batch == null) {
+            batch = new PendingBatch();
+            this.pending.put(replicas, batch);
+        }
+        batch.add(bound);
+        if (batch.statements.size() >= this.maxBatchRows || batch.bytes >= this.maxBatchBytes) {
+            this.pending.remove(replicas);
+            return batch.build();
+        }
+        return null;
+    }
+
+    /**
+     * @return the batches of the rows that were added but not returned yet
+     */
+    public List<BatchStatement> flush() {
+        final List<BatchStatement> batches = new ArrayList<>(this.pending.size());
+        for (final PendingBatch batch : this.pending.values()) {
+            batches.add(batch.build());
+        }
+        this.pending.clear();
+        return batches;
+    }
+
+    private Set<Node> replicas(final BoundStatement bound) {
+        final CqlIdentifier keyspace = bound.getRoutingKeyspace();
+        final ByteBuffer routingKey = bound.getRoutingKey();
+        final Optional<TokenMap> tokenMap = this.session.getMetadata().getTokenMap();
+        if (keyspace == null || routingKey == null || !tokenMap.isPresent()) {
+            return Collections.emptySet();
+        }
+        return tokenMap.get().getReplicas(keyspace, routingKey);
+    }
+
+    private static class PendingBatch {
+
+        private final List<BatchableStatement<?>> statements = new ArrayList<>();
+        private int bytes;
+
+        void add(final BoundStatement bound) {
+            this.statements.add(bound);
+            for (final ByteBuffer value : bound.getValues()) {
+                if (value != null) {
+                    this.bytes += value.remaining();
+                }
+            }
+        }
+
+        BatchStatement build() {
+            return BatchStatement.newInstance(BatchType.UNLOGGED, this.statements).setIdempotent(true);
+        }
+    }
+}
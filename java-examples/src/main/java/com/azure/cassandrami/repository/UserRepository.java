@@ -3,35 +3,99 @@
 
 package com.azure.cassandrami.repository;
 
+import com.azure.cassandrami.util.TinyLfuCache;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.datastax.oss.driver.api.core.ConsistencyLevel;
 import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
 import com.datastax.oss.driver.api.core.cql.BatchStatement;
 import com.datastax.oss.driver.api.core.cql.BatchType;
+import com.datastax.oss.driver.api.core.cql.BatchableStatement;
 import com.datastax.oss.driver.api.core.cql.BoundStatement;
 import com.datastax.oss.driver.api.core.cql.PreparedStatement;
 import com.datastax.oss.driver.api.core.cql.Row;
-import com.datastax.oss.driver.api.core.cql.SimpleStatement;
 import com.datastax.oss.driver.api.core.cql.Statement;
+import com.datastax.oss.driver.api.core.metrics.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import static com.datastax.oss.driver.api.core.ConsistencyLevel.QUORUM;
 
 /**
  * This class gives implementations of create, delete table on Cassandra database Insert & select data from the table
+ *
+ * <p>The user names returned by {@link #selectUser} can be cached in the client (see {@link #cacheUsers}). The
+ * inserts and batches sent through the repository invalidate the cached rows they write; writes sent by other
+ * clients are only seen once the cached rows expire.
  */
 @SuppressWarnings("UnnecessaryLocalVariable")
 public class UserRepository {
     private static final ConsistencyLevel CONSISTENCY_LEVEL = QUORUM;
     private static final Logger LOGGER = LoggerFactory.getLogger(UserRepository.class);
+    private static final int DEFAULT_SCAN_PARALLELISM = 8;
+    private static final int DEFAULT_SCAN_PAGE_SIZE = 1000;
+    // approximate heap footprint of a cache entry, besides the characters of the user_id and user_name
+    private static final int CACHE_ENTRY_OVERHEAD_BYTES = 160;
     private final CqlSession session;
+    private final ConcurrentMap<String, PreparedStatement> preparedStatements = new ConcurrentHashMap<>();
+    private volatile TinyLfuCache<String, String> userCache;
 
     public UserRepository(final CqlSession session) {
         this.session = session;
     }
 
+    /**
+     * Cache the user names returned by {@link #selectUser}, by user_id. The hits, misses, evictions and
+     * expirations are published in the driver's metric registry (if metrics are enabled), under
+     * {@code <session>.user-cache.}
+     *
+     * @param maxBytes   bound of the approximate size of the cached rows
+     * @param ttlSeconds how long a cached row is returned, at most
+     */
+    public void cacheUsers(final long maxBytes, final long ttlSeconds) {
+        final TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(maxBytes, ttlSeconds,
+                TimeUnit.SECONDS, (id, name) -> CACHE_ENTRY_OVERHEAD_BYTES + id.length() + name.length());
+        final Optional<Metrics> metrics = this.session.getMetrics();
+        if (metrics.isPresent()) {
+            final MetricRegistry registry = metrics.get().getRegistry();
+            final String prefix = this.session.getName() + ".user-cache.";
+            registry.removeMatching((name, metric) -> name.startsWith(prefix));
+            registry.register(prefix + "hits", (Gauge<Long>) cache::getHitCount);
+            registry.register(prefix + "misses", (Gauge<Long>) cache::getMissCount);
+            registry.register(prefix + "evictions", (Gauge<Long>) cache::getEvictionCount);
+            registry.register(prefix + "expirations", (Gauge<Long>) cache::getExpirationCount);
+            registry.register(prefix + "size", (Gauge<Integer>) cache::size);
+            registry.register(prefix + "weight", (Gauge<Long>) cache::getWeight);
+        }
+        this.userCache = cache;
+    }
+
+    /**
+     * @return the cache of {@link #selectUser}, or null if rows are not cached
+     */
+    public TinyLfuCache<String, String> getUserCache() {
+        return this.userCache;
+    }
+
+    /**
+     * Prepare a statement once, and reuse it for all subsequent calls with the same query string
+     */
+    private PreparedStatement prepare(final String queryString) {
+        final PreparedStatement prepared = this.preparedStatements.get(queryString);
+        if (prepared != null) {
+            return prepared;
+        }
+        return this.preparedStatements.computeIfAbsent(queryString, this.session::prepare);
+    }
+
     /**
      * Create keyspace uprofile in cassandra DB
      */
@@ -65,9 +129,64 @@ public class UserRepository {
      * @param city user_bcity
      */
     public void insertUser(final String preparedStatement, final String id, final String name, final String city) {
-        final PreparedStatement prepared = this.session.prepare(preparedStatement);
-        final BoundStatement bound = prepared.bind(city, id, name).setIdempotent(true);
-        this.session.execute(bound);
+        insertUser(bindInsertUser(preparedStatement, id, name, city));
+    }
+
+    /**
+     * Insert a row into user table
+     *
+     * @param bound statement returned by {@link #bindInsertUser}
+     */
+    public void insertUser(final BoundStatement bound) {
+        try {
+            this.session.execute(bound);
+        } finally {
+            invalidateUser(bound);
+        }
+    }
+
+    /**
+     * Bind the values of a row to insert into user table
+     *
+     * @param id   user_id
+     * @param name user_name
+     * @param city user_bcity
+     */
+    public BoundStatement bindInsertUser(final String preparedStatement, final String id, final String name,
+            final String city) {
+        return prepare(preparedStatement).bind(city, id, name).setIdempotent(true);
+    }
+
+    /**
+     * Insert a row into user table asynchronously
+     *
+     * @param bound statement returned by {@link #bindInsertUser}
+     */
+    public CompletionStage<AsyncResultSet> insertUserAsync(final BoundStatement bound) {
+        return this.session.executeAsync(bound).whenComplete((rs, error) -> invalidateUser(bound));
+    }
+
+    /**
+     * Create a batcher grouping rows to insert into user table by replica set, for bulk loading
+     *
+     * @param maxBatchRows  maximum number of rows in a batch
+     * @param maxBatchBytes batches are emitted as soon as their bound values reach this size
+     */
+    public UserBatcher newBatcher(final String preparedStatement, final int maxBatchRows, final int maxBatchBytes) {
+        return new UserBatcher(this.session, this, preparedStatement, maxBatchRows, maxBatchBytes);
+    }
+
+    /**
+     * Insert a batch of rows into user table asynchronously
+     *
+     * @param batch batch returned by a {@link UserBatcher}
+     */
+    public CompletionStage<AsyncResultSet> insertBatchAsync(final BatchStatement batch) {
+        return this.session.executeAsync(batch).whenComplete((rs, error) -> {
+            for (final BatchableStatement<?> statement : batch) {
+                invalidateUser(statement);
+            }
+        });
     }
 
     /**
@@ -76,33 +195,107 @@ public class UserRepository {
      * @return PreparedStatement
      */
     public PreparedStatement prepareInsertStatement(final String queryString) {
-        final String insertStatement = queryString;
-        return this.session.prepare(insertStatement);
+        return prepare(queryString);
     }
 
     /**
      * Select all rows from user table
      */
     public void selectAllUsers(final String keyspace) {
+        scanUsers(keyspace, "user", DEFAULT_SCAN_PARALLELISM, DEFAULT_SCAN_PAGE_SIZE,
+            row -> LOGGER.info("Obtained row: {} | {} | {} ", row.getString("user_id"), row.getString("user_name"),
+                row.getString("user_bcity")))
+            .toCompletableFuture().join();
+    }
 
-        final String query = "SELECT * FROM " + keyspace + ".user";
-        final List<Row> rows = this.session.execute(query).all();
+    /**
+     * Scan all rows of a user table, by token ranges read in parallel from the replicas owning them. Rows are
+     * streamed to the consumer page by page, so memory usage does not depend on the size of the table.
+     *
+     * @param parallelism maximum number of token ranges read at the same time
+     * @param pageSize    number of rows fetched per request
+     * @param consumer    called for each row, concurrently from the driver's I/O threads: it must be
+     *                    thread-safe, and must not block
+     * @return the number of rows scanned, once the scan is over
+     */
+    public CompletionStage<Long> scanUsers(final String keyspace, final String table, final int parallelism,
+            final int pageSize, final Consumer<Row> consumer) {
+        return new TokenRangeScan(this.session, "SELECT user_id, user_name, user_bcity FROM " + keyspace + "." + table,
+            "user_id", parallelism, pageSize, consumer).run();
+    }
 
-        for (final Row row : rows) {
-            LOGGER.info("Obtained row: {} | {} | {} ", row.getInt("user_id"), row.getString("user_name"),
-                row.getString("user_bcity"));
-        }
+    /**
+     * Select a row from user table
+     *
+     * @param preparedStatement select query, with the user_id as its only bind marker
+     * @param id                user_id
+     */
+    public String selectUser(final String preparedStatement, final String id) {
+        return selectUser(bindSelectUser(preparedStatement, id));
     }
 
     /**
      * Select a row from user table
+     *
+     * @param bound statement returned by {@link #bindSelectUser}
+     * @return the user_name, or null if the row does not exist
+     */
+    public String selectUser(final BoundStatement bound) {
+        final TinyLfuCache<String, String> cache = this.userCache;
+        if (cache == null) {
+            return selectUserName(bound);
+        }
+        return cache.get(bound.getString("user_id"), id -> selectUserName(bound));
+    }
+
+    private String selectUserName(final BoundStatement bound) {
+        final Row row = this.session.execute(bound).one();
+        return row == null ? null : row.getString("user_name");
+    }
+
+    /**
+     * Remove the row written by an insert from the cache, once the insert completed (or failed, in which case
+     * it may still have been applied)
+     */
+    private void invalidateUser(final Statement<?> statement) {
+        final TinyLfuCache<String, String> cache = this.userCache;
+        if (cache != null && statement instanceof BoundStatement) {
+            cache.invalidate(((BoundStatement) statement).getString("user_id"));
+        }
+    }
+
+    /**
+     * Bind the id of a row to select from user table
+     *
+     * @param preparedStatement select query, with the user_id as its only bind marker
+     * @param id                user_id
      */
-    public String selectUser(final String id, final String keyspace, final String table) {
-        SimpleStatement statement = SimpleStatement.newInstance("SELECT * FROM " + keyspace + "." + table + " where user_id ='" + id + "'")
+    public BoundStatement bindSelectUser(final String preparedStatement, final String id) {
+        return prepare(preparedStatement).bind(id)
         .setIdempotent(true).setConsistencyLevel(ConsistencyLevel.ONE);
-        final Row row = this.session.execute(statement).one();
-        return row.getString("user_name");
-    }    
+    }
+
+    /**
+     * Select a row from user table asynchronously
+     *
+     * @param bound statement returned by {@link #bindSelectUser}
+     */
+    public CompletionStage<String> selectUserAsync(final BoundStatement bound) {
+        return this.session.executeAsync(bound).thenApply(rs -> {
+            final Row row = rs.one();
+            return row == null ? null : row.getString("user_name");
+        });
+    }
+
+    /**
+     * Select a row from user table asynchronously, with all its columns
+     *
+     * @param bound statement returned by {@link #bindSelectUser}
+     * @return the row, or null if it does not exist
+     */
+    public CompletionStage<Row> selectUserRowAsync(final BoundStatement bound) {
+        return this.session.executeAsync(bound).thenApply(AsyncResultSet::one);
+    }
 
     public long selectUserCount(final String queryString) {
         final String query = queryString;
@@ -110,9 +303,13 @@ public class UserRepository {
         return row.getLong(0);
     }
 
-    public void simpleInsertUser(final Statement<?> statement) {
-        final BatchStatement batch = BatchStatement.builder(BatchType.UNLOGGED).build();
-        batch.setConsistencyLevel(CONSISTENCY_LEVEL);
-        this.session.execute(batch);
+    public void simpleInsertUser(final BatchableStatement<?> statement) {
+        final BatchStatement batch = BatchStatement.newInstance(BatchType.UNLOGGED, statement)
+                .setConsistencyLevel(CONSISTENCY_LEVEL);
+        try {
+            this.session.execute(batch);
+        } finally {
+            invalidateUser(statement);
+        }
     }
 }
\ No newline at end of file
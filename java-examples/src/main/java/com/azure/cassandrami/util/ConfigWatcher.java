@@ -0,0 +1,113 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.azure.cassandrami.util;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.config.DriverConfigLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the external configuration file (see {@link Configurations#getFile()}), and reloads it when it changes,
+ * so that the settings of a long-running test can be changed without restarting it.
+ *
+ * <p>On each change, the properties of the load test are reloaded (and pushed to the {@link Configurations}
+ * listeners), then the driver is asked to reload its own configuration: it notifies its components, such as the
+ * load balancing and speculative execution policies of this sample, if any of their options changed.
+ */
+public class ConfigWatcher implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConfigWatcher.class);
+
+    /** editors often write a file in several steps: wait for them to finish before reading it */
+    private static final long SETTLE_MILLIS = 200;
+
+    private final Configurations config;
+    private final Path file;
+    private final DriverConfigLoader driverConfigLoader;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * @throws IllegalStateException if the configuration is not read from an external file
+     */
+    public ConfigWatcher(final Configurations config, final CqlSession session) throws IOException {
+        this.config = config;
+        this.file = config.getFile();
+        if (this.file == null) {
+            throw new IllegalStateException("Only an external configuration file (-Dconfig.file) can be reloaded");
+        }
+        this.driverConfigLoader = session.getContext().getConfigLoader();
+        this.watchService = FileSystems.getDefault().newWatchService();
+        // only directories can be watched
+        this.file.getParent().register(this.watchService, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_CREATE);
+        this.thread = new Thread(this::watch, "config-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        LOGGER.info("Watching " + this.file + " for configuration changes");
+        this.thread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.watchService.close();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                final WatchKey key = this.watchService.take();
+                boolean changed = false;
+                for (final WatchEvent<?> event : key.pollEvents()) {
+                    changed |= this.file.getFileName().equals(event.context());
+                }
+                key.reset();
+                if (changed) {
+                    TimeUnit.MILLISECONDS.sleep(SETTLE_MILLIS);
+                    // discard the events of the remaining steps of the same write
+                    final WatchKey pending = this.watchService.poll();
+                    if (pending != null) {
+                        pending.pollEvents();
+                        pending.reset();
+                    }
+                    reload();
+                }
+            }
+        } catch (final InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private void reload() {
+        LOGGER.info("Configuration file changed, reloading " + this.file);
+        try {
+            this.config.reload();
+        } catch (final IOException e) {
+            LOGGER.warn("Could not reload " + this.file + ": " + e);
+            return;
+        }
+        if (this.driverConfigLoader.supportsReloading()) {
+            this.driverConfigLoader.reload().whenComplete((changed, error) -> {
+                if (error != null) {
+                    LOGGER.warn("Could not reload the driver configuration: " + error);
+                } else if (changed) {
+                    LOGGER.info("Driver configuration reloaded");
+                }
+            });
+        }
+    }
+}
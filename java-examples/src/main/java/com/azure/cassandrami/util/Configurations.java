@@ -8,24 +8,49 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Configuration utility to read the configurations from properties file
+ *
+ * <p>The file is {@code application.conf} from the classpath, or the file named by the {@code config.file} system
+ * property, which the driver also reads its own configuration from. An external file can be reloaded while the
+ * load test runs (see {@link ConfigWatcher}): the properties are replaced all at once, then the listeners are
+ * notified.
  */
 public class Configurations {
     private static final Logger LOGGER = LoggerFactory.getLogger(Configurations.class);
     private static String PROPERTY_FILE = "application.conf";
-    private static Properties prop = null;
+    private static volatile Properties prop = null;
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * Applies the new values of the properties it depends on, after a {@link #reload()}
+     */
+    public interface Listener {
+        void onReload(Configurations config) throws IOException;
+    }
 
     private void loadProperties() throws IOException {
-        InputStream input = getClass().getClassLoader().getResourceAsStream(PROPERTY_FILE);
+        final Path file = getFile();
+        InputStream input = file != null
+                ? Files.newInputStream(file) : getClass().getClassLoader().getResourceAsStream(PROPERTY_FILE);
         if (input == null) {
             LOGGER.error("Sorry, unable to find {}", PROPERTY_FILE);
             return;
         }
-        prop = new Properties();
-        prop.load(input);
+        try {
+            final Properties properties = new Properties();
+            properties.load(input);
+            prop = properties;
+        } finally {
+            input.close();
+        }
     }
 
     public String getProperty(String propertyName) throws IOException {
@@ -35,4 +60,34 @@ public class Configurations {
         return prop.getProperty(propertyName);
 
     }
+
+    /**
+     * @return the external configuration file, or null if the configuration is read from the classpath
+     */
+    public Path getFile() {
+        final String file = System.getProperty("config.file");
+        return file == null ? null : Paths.get(file).toAbsolutePath();
+    }
+
+    /**
+     * Read the configuration file again, and notify the listeners
+     */
+    public void reload() throws IOException {
+        loadProperties();
+        for (final Listener listener : listeners) {
+            try {
+                listener.onReload(this);
+            } catch (final IOException | RuntimeException e) {
+                LOGGER.warn("Could not apply the new configuration: " + e);
+            }
+        }
+    }
+
+    public void addListener(final Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final Listener listener) {
+        listeners.remove(listener);
+    }
 }
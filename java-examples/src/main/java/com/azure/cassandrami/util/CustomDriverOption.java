@@ -0,0 +1,44 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.azure.cassandrami.util;
+
+import com.datastax.oss.driver.api.core.config.DriverOption;
+
+/**
+ * Driver configuration options used by the custom policies of this sample, in addition to the
+ * built-in {@link com.datastax.oss.driver.api.core.config.DefaultDriverOption}s.
+ */
+public enum CustomDriverOption implements DriverOption {
+
+    SPECULATIVE_EXECUTION_PERCENTILE("advanced.speculative-execution-policy.percentile"),
+    SPECULATIVE_EXECUTION_MIN_DELAY("advanced.speculative-execution-policy.min-delay"),
+    SPECULATIVE_EXECUTION_MAX_DELAY("advanced.speculative-execution-policy.max-delay"),
+    SPECULATIVE_EXECUTION_MIN_SAMPLES("advanced.speculative-execution-policy.min-samples"),
+    SPECULATIVE_EXECUTION_REFRESH_INTERVAL("advanced.speculative-execution-policy.refresh-interval"),
+    SPECULATIVE_EXECUTION_MAX_RATIO("advanced.speculative-execution-policy.max-speculative-ratio"),
+    SPECULATIVE_EXECUTION_MAX_BURST("advanced.speculative-execution-policy.max-speculative-burst"),
+    SPECULATIVE_EXECUTION_TRACKED_CLASS("advanced.speculative-execution-policy.tracked-class"),
+
+    LOAD_BALANCING_REPLICA_SELECTION("basic.load-balancing-policy.replica-selection"),
+    LOAD_BALANCING_HEALTH_IN_FLIGHT_THRESHOLD("basic.load-balancing-policy.health.in-flight-threshold"),
+    LOAD_BALANCING_HEALTH_RESPONSE_RATE_INTERVAL("basic.load-balancing-policy.health.response-rate-interval"),
+    LOAD_BALANCING_HEALTH_NEWLY_UP_INTERVAL("basic.load-balancing-policy.health.newly-up-interval"),
+    LOAD_BALANCING_HEALTH_SLOW_LATENCY_RATIO("basic.load-balancing-policy.health.slow-latency-ratio"),
+    LOAD_BALANCING_HEALTH_MAX_ERROR_RATE("basic.load-balancing-policy.health.max-error-rate"),
+    LOAD_BALANCING_HEALTH_REFRESH_INTERVAL("basic.load-balancing-policy.health.refresh-interval"),
+    LOAD_BALANCING_HEALTH_STATS_HALF_LIFE("basic.load-balancing-policy.health.stats-half-life"),
+    LOAD_BALANCING_METRICS_ENABLED("basic.load-balancing-policy.metrics.enabled"),
+    ;
+
+    private final String path;
+
+    CustomDriverOption(String path) {
+        this.path = path;
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+}
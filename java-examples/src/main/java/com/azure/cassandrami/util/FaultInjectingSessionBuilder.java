@@ -0,0 +1,30 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.azure.cassandrami.util;
+
+import com.datastax.oss.driver.api.core.CqlSessionBuilder;
+import com.datastax.oss.driver.api.core.config.DriverConfigLoader;
+import com.datastax.oss.driver.api.core.context.DriverContext;
+import com.datastax.oss.driver.api.core.session.ProgrammaticArguments;
+import com.datastax.oss.driver.internal.core.channel.DegradedNode;
+import com.datastax.oss.driver.internal.core.channel.FaultInjectingDriverContext;
+
+/**
+ * Session builder that artificially degrades the responses of one node of the cluster, which can be changed
+ * while the session is open (see {@link DegradedNode})
+ */
+public class FaultInjectingSessionBuilder extends CqlSessionBuilder {
+
+    private final DegradedNode degradedNode;
+
+    public FaultInjectingSessionBuilder(final DegradedNode degradedNode) {
+        this.degradedNode = degradedNode;
+    }
+
+    @Override
+    protected DriverContext buildContext(final DriverConfigLoader configLoader,
+            final ProgrammaticArguments programmaticArguments) {
+        return new FaultInjectingDriverContext(configLoader, programmaticArguments, degradedNode);
+    }
+}
@@ -0,0 +1,150 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.azure.cassandrami.util;
+
+import com.datastax.oss.driver.api.core.AllNodesFailedException;
+import com.datastax.oss.driver.api.core.CqlIdentifier;
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.RequestThrottlingException;
+import com.datastax.oss.driver.api.core.connection.BusyConnectionException;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.api.core.metadata.TokenMap;
+import com.datastax.oss.driver.api.core.session.Request;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the number of asynchronous requests in flight, globally and per node, and backs off when
+ * the driver reports that the cluster (or the client itself) is overloaded.
+ *
+ * <p>A request is accounted against the primary replica of its partition, which is where token
+ * aware routing sends it most of the time.
+ */
+public class InFlightLimiter {
+
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final CqlSession session;
+    private final int maxInFlight;
+    private final int maxInFlightPerNode;
+    private final Semaphore global;
+    private final ConcurrentMap<Node, Semaphore> perNode = new ConcurrentHashMap<>();
+    private final AtomicInteger consecutiveBackoffs = new AtomicInteger();
+    private final AtomicLong backoffUntilNanos = new AtomicLong(System.nanoTime());
+
+    public InFlightLimiter(final CqlSession session, final int maxInFlight, final int maxInFlightPerNode) {
+        this.session = session;
+        this.maxInFlight = maxInFlight;
+        this.maxInFlightPerNode = maxInFlightPerNode;
+        this.global = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Wait until the request can be sent.
+     *
+     * @return the node that the request was accounted against (possibly null), to pass to
+     *         {@link #release(Node)} once the request completes
+     */
+    public Node acquire(final Request request) throws InterruptedException {
+        final long backoffNanos = this.backoffUntilNanos.get() - System.nanoTime();
+        if (backoffNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(backoffNanos);
+        }
+        this.global.acquire();
+        final Node node = primaryReplica(request);
+        if (node != null) {
+            try {
+                permits(node).acquire();
+            } catch (final InterruptedException e) {
+                this.global.release();
+                throw e;
+            }
+        }
+        return node;
+    }
+
+    public void release(final Node node) {
+        if (node != null) {
+            permits(node).release();
+        }
+        this.global.release();
+    }
+
+    /**
+     * Record the outcome of a request, and schedule a backoff if it failed because of overload.
+     *
+     * @return whether the request failed because of overload
+     */
+    public boolean onComplete(final Throwable error) {
+        if (error != null && isOverloaded(error)) {
+            final int attempt = this.consecutiveBackoffs.incrementAndGet();
+            final long backoffNanos = Math.min(MAX_BACKOFF_NANOS, MIN_BACKOFF_NANOS << Math.min(attempt - 1, 16));
+            this.backoffUntilNanos.set(System.nanoTime() + backoffNanos);
+            return true;
+        }
+        if (this.consecutiveBackoffs.get() != 0) {
+            this.consecutiveBackoffs.set(0);
+        }
+        return false;
+    }
+
+    /**
+     * Wait until all the requests acquired so far have been released.
+     */
+    public void awaitCompletion() throws InterruptedException {
+        this.global.acquire(this.maxInFlight);
+        this.global.release(this.maxInFlight);
+    }
+
+    private Semaphore permits(final Node node) {
+        final Semaphore permits = this.perNode.get(node);
+        if (permits != null) {
+            return permits;
+        }
+        return this.perNode.computeIfAbsent(node, n -> new Semaphore(this.maxInFlightPerNode));
+    }
+
+    private Node primaryReplica(final Request request) {
+        final CqlIdentifier keyspace = request.getRoutingKeyspace();
+        final ByteBuffer routingKey = request.getRoutingKey();
+        if (keyspace == null || routingKey == null) {
+            return null;
+        }
+        final Optional<TokenMap> tokenMap = this.session.getMetadata().getTokenMap();
+        if (!tokenMap.isPresent()) {
+            return null;
+        }
+        final Iterator<Node> replicas = tokenMap.get().getReplicas(keyspace, routingKey).iterator();
+        return replicas.hasNext() ? replicas.next() : null;
+    }
+
+    static boolean isOverloaded(final Throwable error) {
+        final Throwable cause = (error instanceof CompletionException && error.getCause() != null)
+                ? error.getCause() : error;
+        if (cause instanceof RequestThrottlingException || cause instanceof BusyConnectionException) {
+            return true;
+        }
+        if (cause instanceof AllNodesFailedException) {
+            for (final List<Throwable> nodeErrors : ((AllNodesFailedException) cause).getAllErrors().values()) {
+                for (final Throwable nodeError : nodeErrors) {
+                    if (nodeError instanceof BusyConnectionException) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+}
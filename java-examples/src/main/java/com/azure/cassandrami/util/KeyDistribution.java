@@ -0,0 +1,145 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.azure.cassandrami.util;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Chooses which of the existing keys an operation accesses, as in YCSB's request distributions.
+ */
+public interface KeyDistribution {
+
+    /**
+     * @param keyCount the number of existing keys, which may grow while the workload runs
+     * @return the index of the key to access, between 0 and {@code keyCount - 1}
+     */
+    int nextIndex(int keyCount);
+
+    /**
+     * @param name            uniform, zipfian, hotspot or latest
+     * @param keyCount        the number of keys when the workload starts
+     * @param zipfianConstant skew of the zipfian and latest distributions (0.99 in YCSB)
+     * @param hotKeyFraction  fraction of the keys that are hot, for the hotspot distribution
+     * @param hotOpsFraction  fraction of the operations that access the hot keys
+     */
+    static KeyDistribution create(final String name, final int keyCount, final double zipfianConstant,
+            final double hotKeyFraction, final double hotOpsFraction) {
+        switch (name.trim().toLowerCase(Locale.ROOT)) {
+            case "uniform":
+                return new Uniform();
+            case "zipfian":
+                return new Zipfian(keyCount, zipfianConstant);
+            case "hotspot":
+                return new Hotspot(hotKeyFraction, hotOpsFraction);
+            case "latest":
+                return new Latest(new Zipfian(keyCount, zipfianConstant));
+            default:
+                throw new IllegalArgumentException("Unknown key distribution: " + name);
+        }
+    }
+
+    /**
+     * Every key is equally likely
+     */
+    class Uniform implements KeyDistribution {
+
+        @Override
+        public int nextIndex(final int keyCount) {
+            return ThreadLocalRandom.current().nextInt(keyCount);
+        }
+    }
+
+    /**
+     * The key of rank k is accessed with a probability proportional to 1/k^constant (algorithm from Gray et al.,
+     * "Quickly generating billion-record synthetic databases"). Key 0 is the most popular.
+     *
+     * <p>The distribution is computed for the number of keys at creation time; keys added afterwards are never
+     * accessed.
+     */
+    class Zipfian implements KeyDistribution {
+
+        private final int items;
+        private final double theta;
+        private final double zetaN;
+        private final double alpha;
+        private final double eta;
+
+        public Zipfian(final int items, final double constant) {
+            if (constant <= 0 || constant == 1) {
+                throw new IllegalArgumentException("Zipfian constant must be positive and different from 1");
+            }
+            this.items = Math.max(1, items);
+            this.theta = constant;
+            this.zetaN = zeta(this.items, constant);
+            this.alpha = 1 / (1 - constant);
+            this.eta = (1 - Math.pow(2.0 / this.items, 1 - constant)) / (1 - zeta(2, constant) / this.zetaN);
+        }
+
+        @Override
+        public int nextIndex(final int keyCount) {
+            final double u = ThreadLocalRandom.current().nextDouble();
+            final double uz = u * this.zetaN;
+            final int rank;
+            if (uz < 1) {
+                rank = 0;
+            } else if (uz < 1 + Math.pow(0.5, this.theta)) {
+                rank = 1;
+            } else {
+                rank = (int) (this.items * Math.pow(this.eta * u - this.eta + 1, this.alpha));
+            }
+            return Math.min(rank, Math.min(this.items, keyCount) - 1);
+        }
+
+        private static double zeta(final int n, final double theta) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * A fraction of the operations access a small set of hot keys (the first ones), the others access the
+     * remaining keys; both uniformly
+     */
+    class Hotspot implements KeyDistribution {
+
+        private final double hotKeyFraction;
+        private final double hotOpsFraction;
+
+        public Hotspot(final double hotKeyFraction, final double hotOpsFraction) {
+            this.hotKeyFraction = hotKeyFraction;
+            this.hotOpsFraction = hotOpsFraction;
+        }
+
+        @Override
+        public int nextIndex(final int keyCount) {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            final int hotKeys = Math.max(1, Math.min(keyCount, (int) (keyCount * this.hotKeyFraction)));
+            if (hotKeys == keyCount || random.nextDouble() < this.hotOpsFraction) {
+                return random.nextInt(hotKeys);
+            }
+            return hotKeys + random.nextInt(keyCount - hotKeys);
+        }
+    }
+
+    /**
+     * The most recently inserted keys are the most popular, with a zipfian distribution over their recency
+     */
+    class Latest implements KeyDistribution {
+
+        private final Zipfian recency;
+
+        public Latest(final Zipfian recency) {
+            this.recency = recency;
+        }
+
+        @Override
+        public int nextIndex(final int keyCount) {
+            return Math.max(0, keyCount - 1 - this.recency.nextIndex(Integer.MAX_VALUE));
+        }
+    }
+}
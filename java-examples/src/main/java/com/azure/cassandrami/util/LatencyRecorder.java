@@ -0,0 +1,66 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.azure.cassandrami.util;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records request latencies in nanoseconds into an HdrHistogram, with fixed memory.
+ *
+ * <p>Recording is wait-free and can be done concurrently from any number of threads (including the
+ * driver's I/O threads); the recorded values are periodically moved into interval histograms, which
+ * are also accumulated into a histogram covering the whole run.
+ */
+public class LatencyRecorder {
+
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(5);
+    private static final int SIGNIFICANT_DIGITS = 3;
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS);
+    private final Histogram total = new Histogram(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS);
+    private Histogram interval;
+
+    public void record(final long latencyNanos) {
+        this.recorder.recordValue(Math.max(0, Math.min(latencyNanos, HIGHEST_TRACKABLE_NANOS)));
+    }
+
+    /**
+     * @return the latencies recorded since the previous call to this method or to
+     *         {@link #totalHistogram()}. The returned histogram is reused by the next call.
+     */
+    public synchronized Histogram intervalHistogram() {
+        this.interval = this.recorder.getIntervalHistogram(this.interval);
+        this.total.add(this.interval);
+        return this.interval;
+    }
+
+    /**
+     * @return a copy of all the latencies recorded so far
+     */
+    public synchronized Histogram totalHistogram() {
+        intervalHistogram();
+        return this.total.copy();
+    }
+
+    /**
+     * Format the usual percentiles of a histogram, in milliseconds
+     */
+    public static String summary(final Histogram histogram) {
+        return String.format("count=%d p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f (ms)",
+                histogram.getTotalCount(),
+                toMillis(histogram.getValueAtPercentile(50)),
+                toMillis(histogram.getValueAtPercentile(90)),
+                toMillis(histogram.getValueAtPercentile(99)),
+                toMillis(histogram.getValueAtPercentile(99.9)),
+                toMillis(histogram.getMaxValue()));
+    }
+
+    public static double toMillis(final long nanos) {
+        return nanos / NANOS_PER_MILLI;
+    }
+}
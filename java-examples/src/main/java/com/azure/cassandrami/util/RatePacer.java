@@ -0,0 +1,82 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.azure.cassandrami.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads operations evenly over time, at a target rate shared by all the threads that use it.
+ *
+ * <p>Operation n is scheduled at {@code start + n / rate}: when the callers fall behind, the next operations
+ * are due immediately, until they catch up with the schedule. To avoid coordinated omission, the latency of an
+ * operation should be measured from the time it was due (returned by {@link #awaitNext()}), which includes the
+ * time it was delayed by the previous ones.
+ *
+ * <p>The rate can be changed at any time with {@link #setRate(double)}: a new schedule starts from the next
+ * operation.
+ */
+public class RatePacer {
+
+    private final AtomicLong next = new AtomicLong();
+    private volatile Schedule schedule;
+
+    /**
+     * @param operationsPerSecond target rate, or 0 for no limit
+     */
+    public RatePacer(final double operationsPerSecond) {
+        this.schedule = new Schedule(operationsPerSecond, System.nanoTime(), 0);
+    }
+
+    /**
+     * @param operationsPerSecond target rate, or 0 for no limit
+     */
+    public synchronized void setRate(final double operationsPerSecond) {
+        final Schedule current = this.schedule;
+        final long index = this.next.get();
+        // operations already late under the current schedule stay due now, the others are not brought forward
+        final long start = Math.max(System.nanoTime(), current.due(index));
+        this.schedule = new Schedule(operationsPerSecond, start, index);
+    }
+
+    public boolean isLimited() {
+        return this.schedule.intervalNanos > 0;
+    }
+
+    /**
+     * Wait until the next operation is due
+     *
+     * @return the time at which the operation was due (a {@link System#nanoTime()} value)
+     */
+    public long awaitNext() throws InterruptedException {
+        final Schedule schedule = this.schedule;
+        if (schedule.intervalNanos == 0) {
+            return System.nanoTime();
+        }
+        final long due = schedule.due(this.next.getAndIncrement());
+        final long waitNanos = due - System.nanoTime();
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        return due;
+    }
+
+    private static class Schedule {
+        final long intervalNanos;
+        final long startNanos;
+        final long firstIndex;
+
+        Schedule(final double operationsPerSecond, final long startNanos, final long firstIndex) {
+            this.intervalNanos =
+                    operationsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / operationsPerSecond) : 0;
+            this.startNanos = startNanos;
+            this.firstIndex = firstIndex;
+        }
+
+        long due(final long index) {
+            // an operation numbered before a rate change, but scheduled after it, is due at the new start
+            return this.startNanos + Math.max(0, index - this.firstIndex) * this.intervalNanos;
+        }
+    }
+}
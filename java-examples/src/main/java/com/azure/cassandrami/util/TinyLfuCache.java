@@ -0,0 +1,402 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.azure.cassandrami.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * A bounded cache, with entries that expire a fixed time after they were loaded, and a W-TinyLFU eviction
+ * policy: the total weight of the entries (e.g. their size in bytes) is bounded, and frequently read keys are
+ * kept in preference to recently read ones.
+ *
+ * <p>New entries go to a small LRU window (1% of the weight). The entries leaving the window are candidates
+ * to the main space, a segmented LRU (80% protected, for the entries read again since they were admitted, and the
+ * rest on probation); when the cache is full, the candidate is only admitted if its key was read more often
+ * than the least recently used entry on probation, which is evicted instead. Read frequencies are estimated by a
+ * count-min sketch of 4-bit counters, halved periodically so that old popularity fades.
+ *
+ * <p>Lookups do not lock: reads are recorded only if the lock is free (dropping some of them under contention
+ * does not change much the order of the queues), while loads, invalidations and evictions are serialized.
+ * A value loaded while its key was invalidated is not cached, so that a read racing with a write cannot put
+ * the previous value back in the cache.
+ */
+public class TinyLfuCache<K, V> {
+
+    private static final double WINDOW_FRACTION = 0.01;
+    private static final double PROTECTED_FRACTION = 0.8;
+    private static final int INVALIDATION_STRIPES = 1024;
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final long maxWeight;
+    private final long windowMaxWeight;
+    private final long protectedMaxWeight;
+    private final long ttlNanos;
+    private final ToIntBiFunction<? super K, ? super V> weigher;
+    private final ConcurrentMap<K, Entry<K, V>> entries = new ConcurrentHashMap<>();
+    // incremented when a key of the stripe is invalidated, to detect the loads that raced with it
+    private final AtomicLongArray invalidations = new AtomicLongArray(INVALIDATION_STRIPES);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    // guarded by the lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final FrequencySketch sketch = new FrequencySketch();
+    private final Entry<K, V> window = Entry.queue(WINDOW);
+    private final Entry<K, V> probation = Entry.queue(PROBATION);
+    private final Entry<K, V> protectedQueue = Entry.queue(PROTECTED);
+    private long windowWeight;
+    private long protectedWeight;
+    private volatile long weight;
+
+    /**
+     * @param maxWeight maximum total weight of the entries
+     * @param ttl       how long an entry is returned after it was loaded
+     * @param weigher   weight of an entry, e.g. its approximate size in bytes
+     */
+    public TinyLfuCache(final long maxWeight, final long ttl, final TimeUnit unit,
+            final ToIntBiFunction<? super K, ? super V> weigher) {
+        if (maxWeight <= 0 || ttl <= 0) {
+            throw new IllegalArgumentException("The maximum weight and the time to live must be positive");
+        }
+        this.maxWeight = maxWeight;
+        this.windowMaxWeight = Math.max(1, (long) (maxWeight * WINDOW_FRACTION));
+        this.protectedMaxWeight = (long) ((maxWeight - this.windowMaxWeight) * PROTECTED_FRACTION);
+        this.ttlNanos = unit.toNanos(ttl);
+        this.weigher = weigher;
+    }
+
+    /**
+     * Return the cached value of the key, or load it (without locking: concurrent misses of the same key all
+     * call the loader)
+     *
+     * @param loader returns the value of the key, or null to not cache anything
+     */
+    public V get(final K key, final Function<? super K, ? extends V> loader) {
+        final long now = System.nanoTime();
+        final Entry<K, V> entry = this.entries.get(key);
+        if (entry != null && now - entry.loadNanos < this.ttlNanos) {
+            this.hits.increment();
+            if (this.lock.tryLock()) {
+                try {
+                    onRead(entry);
+                } finally {
+                    this.lock.unlock();
+                }
+            }
+            return entry.value;
+        }
+        this.misses.increment();
+        final int stripe = stripe(key);
+        final long invalidation = this.invalidations.get(stripe);
+        final V value = loader.apply(key);
+        if (value != null) {
+            this.lock.lock();
+            try {
+                if (this.invalidations.get(stripe) == invalidation) {
+                    put(key, value, now);
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Remove the key, and prevent the values of the key being loaded from being cached
+     */
+    public void invalidate(final K key) {
+        this.invalidations.incrementAndGet(stripe(key));
+        if (!this.entries.containsKey(key)) {
+            return;
+        }
+        this.lock.lock();
+        try {
+            final Entry<K, V> entry = this.entries.get(key);
+            if (entry != null) {
+                remove(entry);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return the number of entries removed to make room for others
+     */
+    public long getEvictionCount() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * @return the number of entries removed because they were older than the time to live
+     */
+    public long getExpirationCount() {
+        return this.expirations.sum();
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    public long getWeight() {
+        return this.weight;
+    }
+
+    @Override
+    public String toString() {
+        final long hitCount = getHitCount();
+        final long lookups = hitCount + getMissCount();
+        return String.format("%d hits, %d misses (%.1f%% hit rate), %d evictions, %d expirations, "
+                + "%d entries (weight %d of %d)", hitCount, lookups - hitCount,
+                lookups == 0 ? 0 : hitCount * 100.0 / lookups,
+                getEvictionCount(), getExpirationCount(), size(), this.weight, this.maxWeight);
+    }
+
+    private void onRead(final Entry<K, V> entry) {
+        if (entry.queue < 0) {
+            // removed concurrently
+            return;
+        }
+        this.sketch.increment(entry.key);
+        if (entry.queue == WINDOW) {
+            entry.moveTo(this.window);
+        } else if (entry.queue == PROBATION) {
+            // read again since it was admitted
+            entry.moveTo(this.protectedQueue);
+            this.protectedWeight += entry.weight;
+            demoteProtected();
+        } else {
+            entry.moveTo(this.protectedQueue);
+        }
+    }
+
+    private void put(final K key, final V value, final long now) {
+        this.sketch.increment(key);
+        final Entry<K, V> previous = this.entries.get(key);
+        if (previous != null) {
+            if (now - previous.loadNanos >= this.ttlNanos) {
+                this.expirations.increment();
+            }
+            remove(previous);
+        }
+        final int weight = this.weigher.applyAsInt(key, value);
+        if (weight > this.maxWeight) {
+            return;
+        }
+        final Entry<K, V> entry = new Entry<K, V>(key, value, weight, now);
+        this.entries.put(key, entry);
+        entry.moveTo(this.window);
+        this.windowWeight += weight;
+        this.weight += weight;
+        this.sketch.ensureCapacity(this.entries.size());
+        expire(now);
+        evict();
+    }
+
+    /**
+     * Remove the expired entries at the head of each queue (the least recently read ones, which are the most
+     * likely to have expired)
+     */
+    private void expire(final long now) {
+        expire(this.window, now);
+        expire(this.probation, now);
+        expire(this.protectedQueue, now);
+    }
+
+    private void expire(final Entry<K, V> queue, final long now) {
+        while (queue.next != queue && now - queue.next.loadNanos >= this.ttlNanos) {
+            this.expirations.increment();
+            remove(queue.next);
+        }
+    }
+
+    private void evict() {
+        // the entries leaving the window become candidates, at the tail of the probation queue
+        while (this.windowWeight > this.windowMaxWeight) {
+            final Entry<K, V> entry = this.window.next;
+            entry.moveTo(this.probation);
+            this.windowWeight -= entry.weight;
+        }
+        while (this.weight > this.maxWeight) {
+            final Entry<K, V> victim = this.probation.next;
+            final Entry<K, V> candidate = this.probation.previous;
+            final Entry<K, V> evicted;
+            if (victim != this.probation) {
+                evicted = candidate == victim || this.sketch.frequency(candidate.key) > this.sketch.frequency(
+                        victim.key) ? victim : candidate;
+            } else if (this.protectedQueue.next != this.protectedQueue) {
+                evicted = this.protectedQueue.next;
+            } else {
+                evicted = this.window.next;
+            }
+            this.evictions.increment();
+            remove(evicted);
+        }
+    }
+
+    private void demoteProtected() {
+        while (this.protectedWeight > this.protectedMaxWeight) {
+            final Entry<K, V> entry = this.protectedQueue.next;
+            entry.moveTo(this.probation);
+            this.protectedWeight -= entry.weight;
+        }
+    }
+
+    private void remove(final Entry<K, V> entry) {
+        this.entries.remove(entry.key, entry);
+        if (entry.queue == WINDOW) {
+            this.windowWeight -= entry.weight;
+        } else if (entry.queue == PROTECTED) {
+            this.protectedWeight -= entry.weight;
+        }
+        this.weight -= entry.weight;
+        entry.unlink();
+    }
+
+    private static int stripe(final Object key) {
+        final int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (INVALIDATION_STRIPES - 1);
+    }
+
+    /**
+     * A cached value, linked in the queue of its segment, or the sentinel of a queue (in which the first entry
+     * is the least recently read)
+     */
+    private static final class Entry<K, V> {
+        final K key;
+        final V value;
+        final int weight;
+        final long loadNanos;
+        // guarded by the lock of the cache: the queue is negative once the entry was removed
+        int queue = -1;
+        Entry<K, V> previous;
+        Entry<K, V> next;
+
+        Entry(final K key, final V value, final int weight, final long loadNanos) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.loadNanos = loadNanos;
+        }
+
+        static <K, V> Entry<K, V> queue(final int queue) {
+            final Entry<K, V> sentinel = new Entry<K, V>(null, null, 0, 0);
+            sentinel.queue = queue;
+            sentinel.previous = sentinel;
+            sentinel.next = sentinel;
+            return sentinel;
+        }
+
+        /**
+         * Move the entry to the tail of the queue
+         */
+        void moveTo(final Entry<K, V> sentinel) {
+            if (this.next != null) {
+                this.previous.next = this.next;
+                this.next.previous = this.previous;
+            }
+            this.queue = sentinel.queue;
+            this.previous = sentinel.previous;
+            this.next = sentinel;
+            sentinel.previous.next = this;
+            sentinel.previous = this;
+        }
+
+        void unlink() {
+            this.previous.next = this.next;
+            this.next.previous = this.previous;
+            this.previous = null;
+            this.next = null;
+            this.queue = -1;
+        }
+    }
+
+    /**
+     * Count-min sketch of the read frequencies: each key is counted in 4 4-bit counters (16 per long), and its
+     * frequency is the smallest of them. All counters are halved once the number of increments reaches 10 times
+     * the length of the table, which is about 20 times the number of entries.
+     */
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        private static final int MIN_LENGTH = 16;
+        private static final int MAX_LENGTH = 1 << 24;
+
+        private long[] table = new long[MIN_LENGTH];
+        private int increments;
+
+        /**
+         * Grow the table with the number of entries (resetting the counters), so that keys rarely share counters
+         */
+        void ensureCapacity(final int entries) {
+            if (entries > this.table.length && this.table.length < MAX_LENGTH) {
+                this.table = new long[Math.min(MAX_LENGTH, Integer.highestOneBit(entries) << 1)];
+                this.increments = 0;
+            }
+        }
+
+        int frequency(final Object key) {
+            final int hash = spread(key.hashCode());
+            int frequency = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                final int counter = counter(hash, i);
+                frequency = Math.min(frequency, (int) (this.table[counter >>> 4] >>> ((counter & 15) << 2)) & 15);
+            }
+            return frequency;
+        }
+
+        void increment(final Object key) {
+            final int hash = spread(key.hashCode());
+            boolean incremented = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                final int counter = counter(hash, i);
+                final int shift = (counter & 15) << 2;
+                if (((this.table[counter >>> 4] >>> shift) & 15) < 15) {
+                    this.table[counter >>> 4] += 1L << shift;
+                    incremented = true;
+                }
+            }
+            if (incremented && ++this.increments >= 10 * this.table.length) {
+                for (int i = 0; i < this.table.length; i++) {
+                    this.table[i] = (this.table[i] >>> 1) & 0x7777777777777777L;
+                }
+                this.increments /= 2;
+            }
+        }
+
+        /**
+         * @return the index of the key's counter in row i, among the 16 counters of each long of the table
+         */
+        private int counter(final int hash, final int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return (int) h & (this.table.length * 16 - 1);
+        }
+
+        private static int spread(final int hashCode) {
+            final int h = hashCode * 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.azure.cassandrami.util;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compact in-memory copy of the generated rows (id, name, city), to read them back and verify them.
+ *
+ * <p>Rows are addressed by index: each worker reserves a range of indexes, and writes the rows of
+ * that range. Ids are stored
+ * in preallocated arrays as the two longs of their UUID, or not stored at all when the store has a
+ * seed: they are then regenerated from the seed and the index. Names and cities are stored as
+ * indexes into dictionaries of distinct values (generated names and cities are drawn from small
+ * sets). A row costs 24 bytes (8 with a seed), instead of hundreds of bytes for the equivalent
+ * strings and collection nodes.
+ *
+ * <p>Rows can be set concurrently. While they are, only the rows below {@link #publishedSize()} can be read: all
+ * of them were set, and their ids do not change anymore. The name and city of a row updated concurrently can be
+ * those of either update; the whole rows must be read once all the writes are done.
+ */
+public class UserStore {
+
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final long[] mostSigBits;
+    private final long[] leastSigBits;
+    private final int[] names;
+    private final int[] cities;
+    private final Dictionary nameDictionary = new Dictionary();
+    private final Dictionary cityDictionary = new Dictionary();
+    private final boolean seeded;
+    private final long seed;
+    private final AtomicInteger size = new AtomicInteger();
+    // indexes above the published size that were set, guarded by this
+    private final BitSet setAbovePublished;
+    private volatile int publishedSize;
+
+    /**
+     * Create a store with random ids
+     */
+    public UserStore(final int capacity) {
+        this(capacity, false, 0);
+    }
+
+    /**
+     * Create a store with ids generated from the seed and their index
+     */
+    public UserStore(final int capacity, final long seed) {
+        this(capacity, true, seed);
+    }
+
+    private UserStore(final int capacity, final boolean seeded, final long seed) {
+        this.seeded = seeded;
+        this.seed = seed;
+        this.mostSigBits = seeded ? null : new long[capacity];
+        this.leastSigBits = seeded ? null : new long[capacity];
+        this.names = new int[capacity];
+        this.cities = new int[capacity];
+        this.setAbovePublished = new BitSet(capacity);
+        Arrays.fill(this.names, -1);
+        Arrays.fill(this.cities, -1);
+    }
+
+    /**
+     * Reserve the indexes of {@code count} new rows
+     *
+     * @return the first index of the range, or -1 if the store does not have room for it
+     */
+    public int reserve(final int count) {
+        int first;
+        do {
+            first = this.size.get();
+            if (first + count > this.names.length) {
+                return -1;
+            }
+        } while (!this.size.compareAndSet(first, first + count));
+        return first;
+    }
+
+    /**
+     * @return the id of the row at this index: a random one, or the one derived from the seed
+     */
+    public UUID newId(final int index) {
+        return this.seeded ? seededId(index) : UUID.randomUUID();
+    }
+
+    /**
+     * @param id the id returned by {@link #newId(int)} for this index
+     */
+    public void set(final int index, final UUID id, final String name, final String city) {
+        if (!this.seeded) {
+            this.mostSigBits[index] = id.getMostSignificantBits();
+            this.leastSigBits[index] = id.getLeastSignificantBits();
+        }
+        this.names[index] = this.nameDictionary.indexOf(name);
+        this.cities[index] = this.cityDictionary.indexOf(city);
+        if (index >= this.publishedSize) {
+            publish(index);
+        }
+    }
+
+    /**
+     * @return the number of reserved indexes
+     */
+    public int size() {
+        return this.size.get();
+    }
+
+    /**
+     * @return the number of rows that can be read while others are set: the rows at the indexes below it were all
+     *         set
+     */
+    public int publishedSize() {
+        return this.publishedSize;
+    }
+
+    /**
+     * Advance the published size past this index, and past the following indexes set before it
+     */
+    private synchronized void publish(final int index) {
+        final int published = this.publishedSize;
+        if (index > published) {
+            this.setAbovePublished.set(index);
+        } else if (index == published) {
+            final int next = this.setAbovePublished.nextClearBit(index + 1);
+            this.setAbovePublished.clear(index + 1, next);
+            this.publishedSize = next;
+        }
+    }
+
+    public String getId(final int index) {
+        return (this.seeded ? seededId(index) : new UUID(this.mostSigBits[index], this.leastSigBits[index]))
+                .toString();
+    }
+
+    /**
+     * @return the name of the row, or null if it was not set
+     */
+    public String getName(final int index) {
+        return this.nameDictionary.get(this.names[index]);
+    }
+
+    /**
+     * @return the city of the row, or null if it was not set
+     */
+    public String getCity(final int index) {
+        return this.cityDictionary.get(this.cities[index]);
+    }
+
+    /**
+     * Version 4 (random) UUID, whose random bits are derived from the seed and the index
+     */
+    private UUID seededId(final int index) {
+        final long mostSigBits = mix(this.seed + index * GOLDEN_GAMMA);
+        final long leastSigBits = mix(mostSigBits + GOLDEN_GAMMA);
+        return new UUID((mostSigBits & ~0xF000L) | 0x4000L,
+                (leastSigBits & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L);
+    }
+
+    /**
+     * Finalizer of the SplitMix64 generator
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Distinct values, each assigned an index in the order they are first seen
+     */
+    private static class Dictionary {
+
+        private final Map<String, Integer> indexes = new ConcurrentHashMap<>();
+        private String[] values = new String[64];
+        private int count;
+
+        int indexOf(final String value) {
+            final Integer index = this.indexes.get(value);
+            if (index != null) {
+                return index;
+            }
+            return this.indexes.computeIfAbsent(value, this::append);
+        }
+
+        String get(final int index) {
+            return index < 0 ? null : this.values[index];
+        }
+
+        private synchronized int append(final String value) {
+            if (this.count == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.count * 2);
+            }
+            this.values[this.count] = value;
+            return this.count++;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.azure.cassandrami.util;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executors that run the blocking load test workers, on platform threads or on virtual threads.
+ *
+ * <p>Virtual threads need Java 21 at runtime. They are looked up by reflection, so that the project still builds
+ * for Java 8 (the {@code java21} Maven profile builds it for Java 21).
+ */
+public final class WorkerThreads {
+
+    /**
+     * Where the workers run
+     */
+    public enum Kind {
+        /** a cached pool of platform threads: one OS thread per concurrent worker */
+        PLATFORM,
+        /** one virtual thread per worker, multiplexed by the JVM on a few carrier threads */
+        VIRTUAL;
+
+        public static Kind parse(final String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findVirtualThreadExecutorFactory();
+
+    private WorkerThreads() {
+    }
+
+    public static boolean isVirtualAvailable() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * @throws UnsupportedOperationException if virtual threads are requested but this JVM does not support them
+     */
+    public static ExecutorService newExecutor(final Kind kind) {
+        if (kind == Kind.PLATFORM) {
+            return Executors.newCachedThreadPool();
+        }
+        if (!isVirtualAvailable()) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later (running "
+                    + System.getProperty("java.version") + ")");
+        }
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+        } catch (final ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create a virtual thread executor", e);
+        }
+    }
+
+    private static Method findVirtualThreadExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (final NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
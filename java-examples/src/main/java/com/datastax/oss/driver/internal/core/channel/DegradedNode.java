@@ -0,0 +1,49 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.datastax.oss.driver.internal.core.channel;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.net.InetAddress;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * The node whose responses are degraded by a {@link FaultInjectingChannelFactory}, and the faults
+ * applied to them.
+ *
+ * <p>Both can be changed while the session is open, for example when the configuration is
+ * reloaded: they are replaced together, and apply to the next responses.
+ */
+@ThreadSafe
+public class DegradedNode {
+
+  private volatile Target target;
+
+  /** @param address the degraded node, or null to degrade none */
+  public DegradedNode(@Nullable InetAddress address, @NonNull FaultInjector injector) {
+    this.target = new Target(address, injector);
+  }
+
+  /** @param address the degraded node, or null to degrade none */
+  public void set(@Nullable InetAddress address, @NonNull FaultInjector injector) {
+    this.target = new Target(address, injector);
+  }
+
+  /** @return the injector to apply to the responses of the node, or null if it is not degraded */
+  @Nullable
+  FaultInjector injectorFor(@NonNull InetAddress address) {
+    Target target = this.target;
+    return address.equals(target.address) ? target.injector : null;
+  }
+
+  private static class Target {
+    final InetAddress address;
+    final FaultInjector injector;
+
+    Target(InetAddress address, FaultInjector injector) {
+      this.address = address;
+      this.injector = injector;
+    }
+  }
+}
@@ -0,0 +1,75 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.datastax.oss.driver.internal.core.channel;
+
+import com.datastax.oss.driver.api.core.ProtocolVersion;
+import com.datastax.oss.driver.api.core.metadata.EndPoint;
+import com.datastax.oss.driver.internal.core.context.InternalDriverContext;
+import com.datastax.oss.driver.internal.core.metrics.NodeMetricUpdater;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.CompletableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A channel factory that installs a {@link FaultInjectionHandler} on the pooled connections, in
+ * order to simulate a degraded node from the client side.
+ *
+ * <p>The handler is installed on the connections to all the nodes, and checks for each response
+ * whether its node is the {@link DegradedNode}, which can change at any time. The control
+ * connection is never affected.
+ */
+public class FaultInjectingChannelFactory extends ChannelFactory {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FaultInjectingChannelFactory.class);
+
+  public static final String FAULT_INJECTION_HANDLER_NAME = "fault-injection";
+
+  private final DegradedNode degradedNode;
+
+  public FaultInjectingChannelFactory(InternalDriverContext context, DegradedNode degradedNode) {
+    super(context);
+    this.degradedNode = degradedNode;
+  }
+
+  @Override
+  ChannelInitializer<Channel> initializer(
+      EndPoint endPoint,
+      ProtocolVersion protocolVersion,
+      DriverChannelOptions options,
+      NodeMetricUpdater nodeMetricUpdater,
+      CompletableFuture<DriverChannel> resultFuture) {
+    ChannelInitializer<Channel> initializer =
+        super.initializer(endPoint, protocolVersion, options, nodeMetricUpdater, resultFuture);
+    SocketAddress address = endPoint.resolve();
+    if (!(address instanceof InetSocketAddress) || !options.eventTypes.isEmpty()) {
+      return initializer;
+    }
+    InetAddress inetAddress = ((InetSocketAddress) address).getAddress();
+    return new ChannelInitializer<Channel>() {
+      @Override
+      protected void initChannel(Channel channel) {
+        channel.pipeline().addLast(initializer);
+        // Install the handler once the connection is initialized, so that the handshake is not
+        // affected
+        resultFuture.thenAccept(
+            driverChannel -> {
+              if (channel.isActive()) {
+                LOG.debug("Installing fault injection on connection {}", channel);
+                channel
+                    .pipeline()
+                    .addBefore(
+                        INFLIGHT_HANDLER_NAME,
+                        FAULT_INJECTION_HANDLER_NAME,
+                        new FaultInjectionHandler(degradedNode, inetAddress));
+              }
+            });
+      }
+    };
+  }
+}
@@ -0,0 +1,27 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.datastax.oss.driver.internal.core.channel;
+
+import com.datastax.oss.driver.api.core.config.DriverConfigLoader;
+import com.datastax.oss.driver.api.core.session.ProgrammaticArguments;
+import com.datastax.oss.driver.internal.core.context.DefaultDriverContext;
+
+/** A driver context that connects through a {@link FaultInjectingChannelFactory}. */
+public class FaultInjectingDriverContext extends DefaultDriverContext {
+
+  private final DegradedNode degradedNode;
+
+  public FaultInjectingDriverContext(
+      DriverConfigLoader configLoader,
+      ProgrammaticArguments programmaticArguments,
+      DegradedNode degradedNode) {
+    super(configLoader, programmaticArguments);
+    this.degradedNode = degradedNode;
+  }
+
+  @Override
+  protected ChannelFactory buildChannelFactory() {
+    return new FaultInjectingChannelFactory(this, degradedNode);
+  }
+}
@@ -0,0 +1,66 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.datastax.oss.driver.internal.core.channel;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.datastax.oss.protocol.internal.Frame;
+import com.datastax.oss.protocol.internal.ProtocolConstants;
+import com.datastax.oss.protocol.internal.response.Error;
+import com.datastax.oss.protocol.internal.response.Result;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import java.net.InetAddress;
+import java.util.Collections;
+
+/**
+ * Applies the faults chosen by a {@link FaultInjector} to the responses read from a channel,
+ * before they reach the {@link InFlightHandler} that completes the requests, while the channel's
+ * node is the {@link DegradedNode}.
+ *
+ * <p>Delays are implemented by rescheduling the read on the channel's event loop, so that the I/O
+ * thread is never blocked and the other channels it serves are not affected.
+ */
+class FaultInjectionHandler extends ChannelInboundHandlerAdapter {
+
+  private final DegradedNode degradedNode;
+  private final InetAddress address;
+
+  FaultInjectionHandler(DegradedNode degradedNode, InetAddress address) {
+    this.degradedNode = degradedNode;
+    this.address = address;
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) {
+    // Only responses to queries are affected: protocol events, heartbeats and errors are not
+    FaultInjector injector;
+    if (msg instanceof Frame
+        && ((Frame) msg).message instanceof Result
+        && (injector = degradedNode.injectorFor(address)) != null) {
+      Frame frame = (Frame) msg;
+      switch (injector.nextFault()) {
+        case DELAY:
+          ctx.executor()
+              .schedule(() -> ctx.fireChannelRead(frame), injector.getDelayNanos(), NANOSECONDS);
+          return;
+        case ERROR:
+          ctx.fireChannelRead(
+              Frame.forResponse(
+                  frame.protocolVersion,
+                  frame.streamId,
+                  null,
+                  Frame.NO_PAYLOAD,
+                  Collections.emptyList(),
+                  new Error(ProtocolConstants.ErrorCode.OVERLOADED, "Fault injected by the client")));
+          return;
+        case DROP:
+          return;
+        default:
+          break;
+      }
+    }
+    ctx.fireChannelRead(msg);
+  }
+}
@@ -0,0 +1,28 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.datastax.oss.driver.internal.core.channel;
+
+/**
+ * Decides which fault, if any, to apply to a response received from a degraded node.
+ *
+ * <p>Implementations are invoked on the driver's I/O threads for every response, so they must be
+ * thread-safe and must never block.
+ */
+public interface FaultInjector {
+
+  enum Fault {
+    /** Forward the response unchanged. */
+    NONE,
+    /** Forward the response after {@link #getDelayNanos()}. */
+    DELAY,
+    /** Replace the response with an {@code OVERLOADED} error. */
+    ERROR,
+    /** Discard the response: the request will time out on the client side. */
+    DROP,
+  }
+
+  Fault nextFault();
+
+  long getDelayNanos();
+}
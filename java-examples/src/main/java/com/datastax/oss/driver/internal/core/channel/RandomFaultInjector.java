@@ -0,0 +1,50 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.datastax.oss.driver.internal.core.channel;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Drops or fails a random fraction of the responses, and delays all the other ones by a fixed
+ * amount of time.
+ */
+@ThreadSafe
+public class RandomFaultInjector implements FaultInjector {
+
+  private final long delayNanos;
+  private final double errorRate;
+  private final double dropRate;
+
+  public RandomFaultInjector(long delayMillis, double errorRate, double dropRate) {
+    if (delayMillis < 0 || errorRate < 0 || dropRate < 0 || errorRate + dropRate > 1) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Invalid fault injection settings: delay=%d ms, error rate=%s, drop rate=%s",
+              delayMillis, errorRate, dropRate));
+    }
+    this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+    this.errorRate = errorRate;
+    this.dropRate = dropRate;
+  }
+
+  @Override
+  public Fault nextFault() {
+    if (errorRate > 0 || dropRate > 0) {
+      double roll = ThreadLocalRandom.current().nextDouble();
+      if (roll < dropRate) {
+        return Fault.DROP;
+      } else if (roll < dropRate + errorRate) {
+        return Fault.ERROR;
+      }
+    }
+    return delayNanos > 0 ? Fault.DELAY : Fault.NONE;
+  }
+
+  @Override
+  public long getDelayNanos() {
+    return delayNanos;
+  }
+}
@@ -15,77 +15,255 @@
  */
 package com.datastax.oss.driver.internal.core.loadbalancing;
 
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
-import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
-import java.io.IOException;
-
-import com.azure.cassandrami.util.Configurations;
+import com.azure.cassandrami.util.CustomDriverOption;
+import com.datastax.dse.driver.api.core.graph.GraphStatement;
 import com.datastax.dse.driver.internal.core.tracker.MultiplexingRequestTracker;
 import com.datastax.oss.driver.api.core.config.DefaultDriverOption;
 import com.datastax.oss.driver.api.core.config.DriverExecutionProfile;
 import com.datastax.oss.driver.api.core.context.DriverContext;
+import com.datastax.oss.driver.api.core.cql.Statement;
 import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.api.core.metrics.Metrics;
 import com.datastax.oss.driver.api.core.session.Request;
 import com.datastax.oss.driver.api.core.session.Session;
 import com.datastax.oss.driver.api.core.tracker.RequestTracker;
+import com.datastax.oss.driver.internal.core.config.ConfigChangeEvent;
 import com.datastax.oss.driver.internal.core.loadbalancing.helper.MandatoryLocalDcHelper;
-import com.datastax.oss.driver.internal.core.pool.ChannelPool;
-import com.datastax.oss.driver.internal.core.session.DefaultSession;
 import com.datastax.oss.driver.internal.core.util.ArrayUtils;
 import com.datastax.oss.driver.internal.core.util.collection.QueryPlan;
 import com.datastax.oss.driver.internal.core.util.collection.SimpleQueryPlan;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.Nullable;
-import java.util.BitSet;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Queue;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLong;
 import net.jcip.annotations.ThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Customer version of the default load balancing policy that will deliberately slow down response of a node.
+ * Custom version of the default load balancing policy, which avoids slow replicas based on the
+ * response statistics that it collects for each node.
+ *
+ * <p>A replica is considered unhealthy, and moved to the back of the replicas in the query plan,
+ * when:
+ *
+ * <ul>
+ *   <li>it has at least {@code in-flight-threshold} requests in flight, and returned less than 2
+ *       responses during the last {@code response-rate-interval}; or
+ *   <li>its recent latency is more than {@code slow-latency-ratio} times the median latency of the
+ *       nodes of the local datacenter (recomputed every {@code refresh-interval}), errors counting
+ *       as responses twice as slow as that; or
+ *   <li>more than {@code max-error-rate} of its recent responses were errors.
+ * </ul>
+ *
+ * <p>For each {@code stats-half-life} elapsed since the last response of a node, its recent error
+ * rate is halved, and its recent latency moves half of the way to the median latency of its peers,
+ * so that a node moved to the back gets requests again after a while, and is only kept at the back
+ * if it is still slow or failing. A node that is merely idle keeps the latency of its peers, so it
+ * does not look faster than them.
+ *
+ * <p>The first replica of the plan is then chosen according to {@code replica-selection}:
+ *
+ * <ul>
+ *   <li>{@code shuffle} (the default): the replicas are shuffled, and when there are more than 2,
+ *       the first two are swapped if the first one has more requests in flight (or as many, and a
+ *       higher latency);
+ *   <li>{@code power-of-two-choices}: of the first two shuffled replicas, the one with the lowest
+ *       cost goes first, the cost of a replica being its requests in flight (plus the new one)
+ *       times its recent latency;
+ *   <li>{@code least-cost}: the replica with the lowest cost goes first.
+ * </ul>
+ *
+ * <p>The cost-based modes also apply to 2 replicas, and only choose among the replicas that were
+ * not moved to the back.
  *
  * <p>To activate this policy, modify the {@code basic.load-balancing-policy} section in the driver
  * configuration, for example:
  *
- * 
+ * <pre>
+ * datastax-java-driver {
+ *   basic.load-balancing-policy {
+ *     class = CustomLoadBalancingPolicy
+ *     replica-selection = shuffle
+ *     health {
+ *       in-flight-threshold = 10
+ *       response-rate-interval = 200 milliseconds
+ *       newly-up-interval = 1 minute
+ *       slow-latency-ratio = 3.0
+ *       max-error-rate = 0.2
+ *       refresh-interval = 100 milliseconds
+ *       stats-half-life = 1 second
+ *     }
+ *     metrics.enabled = true
+ *   }
+ * }
+ * </pre>
+ *
+ * <p>The requests in flight to each node are counted by the policy itself (see {@link
+ * InFlightCounters}), from the query plans that it builds and the responses that it tracks. Only
+ * the CQL and graph statements are counted: the driver does not report the responses to the other
+ * requests (such as the preparation of statements and the queries of the control connection) to
+ * the request trackers.
+ *
+ * <p>The {@code health} options are read again when the driver configuration is reloaded.
+ *
+ * <p>With {@code metrics.enabled}, the decisions of the policy are counted per node, and exposed in
+ * the driver's metric registry (see {@link LoadBalancingMetrics}). The registry only exists if at
+ * least one of the driver's own session or node metrics is enabled.
  */
 @ThreadSafe
 public class CustomLoadBalancingPolicy extends BasicLoadBalancingPolicy implements RequestTracker {
 
   private static final Logger LOG = LoggerFactory.getLogger(DefaultLoadBalancingPolicy.class);
 
-  private static final long NEWLY_UP_INTERVAL_NANOS = MINUTES.toNanos(1);
-  private static final int MAX_IN_FLIGHT_THRESHOLD = 10;
-  private static final long RESPONSE_COUNT_RESET_INTERVAL_NANOS = MILLISECONDS.toNanos(200);
-
-  protected final Map<Node, AtomicLongArray> responseTimes = new ConcurrentHashMap<>();
+  protected final Map<Node, NodeResponseStats> responseStats = new ConcurrentHashMap<>();
   protected final Map<Node, Long> upTimes = new ConcurrentHashMap<>();
+  protected final InFlightCounters inFlightCounters;
   private final boolean avoidSlowReplicas;
-  private final Logger LOGGER = LoggerFactory.getLogger(CustomLoadBalancingPolicy.class);
+  private final ReplicaSelection replicaSelection;
+
+  // Replaced as a whole when the configuration is reloaded
+  private volatile HealthSettings health;
+
+  // Median latency of the local DC nodes, recomputed at most once per health refresh interval
+  private final AtomicLong lastPeerLatencyRefreshNanos;
+  private volatile long peerLatencyNanos = -1;
+
+  // null until init
+  @Nullable private volatile Object configListenerKey;
 
-  Configurations config = new Configurations();
+  // null if metrics are disabled
+  @Nullable private volatile LoadBalancingMetrics metrics;
+
+  // Live nodes of the local DC, only rebuilt on topology and state events so that query plans do
+  // not have to copy the concurrent node set.
+  private volatile Object[] localNodes = new Object[0];
 
   public CustomLoadBalancingPolicy(@NonNull DriverContext context, @NonNull String profileName) {
     super(context, profileName);
     this.avoidSlowReplicas =
         profile.getBoolean(DefaultDriverOption.LOAD_BALANCING_POLICY_SLOW_AVOIDANCE, true);
+    this.replicaSelection =
+        ReplicaSelection.fromConfig(
+            profile.getString(CustomDriverOption.LOAD_BALANCING_REPLICA_SELECTION, "shuffle"));
+    this.health = new HealthSettings(profile);
+    // through nanoTime(), so that a clock substituted by a subclass applies from the start
+    this.lastPeerLatencyRefreshNanos = new AtomicLong(nanoTime());
+    // unanswered requests are abandoned by the driver at the request timeout
+    Duration requestTimeout =
+        profile.getDuration(DefaultDriverOption.REQUEST_TIMEOUT, Duration.ofSeconds(2));
+    this.inFlightCounters = new InFlightCounters(requestTimeout.toNanos(), nanoTime());
   }
 
   @Override
   public void init(@NonNull Map<UUID, Node> nodes, @NonNull DistanceReporter distanceReporter) {
     super.init(nodes, distanceReporter);
+    for (Node node : nodes.values()) {
+      addInFlightCounters(node);
+    }
+    if (profile.getBoolean(CustomDriverOption.LOAD_BALANCING_METRICS_ENABLED, false)) {
+      Optional<Metrics> driverMetrics = context.getMetricsFactory().getMetrics();
+      if (driverMetrics.isPresent()) {
+        metrics =
+            new LoadBalancingMetrics(
+                driverMetrics.get().getRegistry(), context.getSessionName(), this);
+      } else {
+        LOG.warn(
+            "[{}] Load balancing metrics are enabled, but the driver has no metric registry "
+                + "(enable at least one session or node metric in advanced.metrics)",
+            logPrefix);
+      }
+    }
+    refreshLocalNodes();
     if (avoidSlowReplicas) {
       ((MultiplexingRequestTracker) context.getRequestTracker()).register(this);
     }
+    // The profile reads the reloaded values, but the settings derived from them must be rebuilt
+    configListenerKey =
+        context.getEventBus().register(ConfigChangeEvent.class, this::onConfigChange);
+  }
+
+  private void onConfigChange(@SuppressWarnings("unused") ConfigChangeEvent event) {
+    HealthSettings health = new HealthSettings(profile);
+    LOG.info("[{}] Health settings reloaded: {}", logPrefix, health);
+    this.health = health;
+  }
+
+  @Override
+  public void close() {
+    super.close();
+    Object configListenerKey = this.configListenerKey;
+    if (configListenerKey != null) {
+      context.getEventBus().unregister(configListenerKey, ConfigChangeEvent.class);
+    }
+  }
+
+  @Override
+  public void onAdd(@NonNull Node node) {
+    super.onAdd(node);
+    addInFlightCounters(node);
+    refreshLocalNodes();
+  }
+
+  @Override
+  public void onUp(@NonNull Node node) {
+    super.onUp(node);
+    if (avoidSlowReplicas) {
+      upTimes.put(node, nanoTime());
+    }
+    refreshLocalNodes();
+  }
+
+  @Override
+  public void onDown(@NonNull Node node) {
+    super.onDown(node);
+    upTimes.remove(node);
+    refreshLocalNodes();
+  }
+
+  @Override
+  public void onRemove(@NonNull Node node) {
+    super.onRemove(node);
+    upTimes.remove(node);
+    inFlightCounters.remove(node);
+    LoadBalancingMetrics metrics = this.metrics;
+    if (metrics != null) {
+      // with the lock of refreshLocalNodes, so that a concurrent refresh does not register it again
+      synchronized (this) {
+        metrics.unregister(node);
+      }
+    }
+    refreshLocalNodes();
+  }
+
+  /** Only the local nodes are counted, since the query plans only count them. */
+  private void addInFlightCounters(Node node) {
+    if (Objects.equals(node.getDatacenter(), getLocalDatacenter())) {
+      inFlightCounters.add(node);
+    }
+  }
+
+  private synchronized void refreshLocalNodes() {
+    // synchronized so that concurrent events cannot publish an older snapshot last
+    localNodes = getLiveNodes().dc(getLocalDatacenter()).toArray();
+    LoadBalancingMetrics metrics = this.metrics;
+    if (metrics != null) {
+      for (Object node : localNodes) {
+        metrics.register((Node) node);
+      }
+    }
   }
 
   @NonNull
@@ -102,8 +280,12 @@ public class CustomLoadBalancingPolicy extends BasicLoadBalancingPolicy implemen
       return super.newQueryPlan(request, session);
     }
 
-    // Take a snapshot since the set is concurrent:
-    Object[] currentNodes = getLiveNodes().dc(getLocalDatacenter()).toArray();
+    // Copy the snapshot, since the plan reorders it; this is the only array allocated per plan
+    Object[] snapshot = localNodes;
+    if (snapshot.length == 0) {
+      return maybeAddDcFailover(request, QueryPlan.EMPTY);
+    }
+    Object[] currentNodes = snapshot.clone();
 
     Set<Node> allReplicas = getReplicas(request, session);
     int replicaCount = 0; // in currentNodes
@@ -123,30 +305,31 @@ public class CustomLoadBalancingPolicy extends BasicLoadBalancingPolicy implemen
 
         shuffleHead(currentNodes, replicaCount);
 
-        if (replicaCount > 2) {
+        LoadBalancingMetrics metrics = this.metrics;
+        long now = nanoTime();
+        // the replicas in front of the ones moved to the back below
+        int candidateCount = replicaCount;
 
-          assert session != null;
+        if (replicaCount > 2) {
 
           // Test replicas health
           Node newestUpReplica = null;
-          BitSet unhealthyReplicas = null; // bit mask storing indices of unhealthy replicas
+          // bit mask storing indices of unhealthy replicas (only the first 64 are tested)
+          long unhealthyReplicas = 0;
           long mostRecentUpTimeNanos = -1;
-          long now = nanoTime();
+          long newlyUpIntervalNanos = health.newlyUpIntervalNanos;
           for (int i = 0; i < replicaCount; i++) {
             Node node = (Node) currentNodes[i];
             assert node != null;
             Long upTimeNanos = upTimes.get(node);
             if (upTimeNanos != null
-                && now - upTimeNanos - NEWLY_UP_INTERVAL_NANOS < 0
+                && now - upTimeNanos - newlyUpIntervalNanos < 0
                 && upTimeNanos - mostRecentUpTimeNanos > 0) {
               newestUpReplica = node;
               mostRecentUpTimeNanos = upTimeNanos;
             }
-            if (newestUpReplica == null && isUnhealthy(node, session, now)) {
-              if (unhealthyReplicas == null) {
-                unhealthyReplicas = new BitSet(replicaCount);
-              }
-              unhealthyReplicas.set(i);
+            if (newestUpReplica == null && i < Long.SIZE && isUnhealthy(node, now)) {
+              unhealthyReplicas |= 1L << i;
             }
           }
 
@@ -154,8 +337,7 @@ public class CustomLoadBalancingPolicy extends BasicLoadBalancingPolicy implemen
           // - there isn't any newly UP replica and
           // - there is one or more unhealthy replicas and
           // - there is a majority of healthy replicas
-          int unhealthyReplicasCount =
-              unhealthyReplicas == null ? 0 : unhealthyReplicas.cardinality();
+          int unhealthyReplicasCount = Long.bitCount(unhealthyReplicas);
           if (newestUpReplica == null
               && unhealthyReplicasCount > 0
               && unhealthyReplicasCount < (replicaCount / 2.0)) {
@@ -165,11 +347,15 @@ public class CustomLoadBalancingPolicy extends BasicLoadBalancingPolicy implemen
             // stop once all unhealthy replicas are moved to the back.
             int counter = 0;
             for (int i = replicaCount - 1; i >= 0 && counter < unhealthyReplicasCount; i--) {
-              if (unhealthyReplicas.get(i)) {
+              if (i < Long.SIZE && (unhealthyReplicas & (1L << i)) != 0) {
+                if (metrics != null) {
+                  metrics.onUnhealthyDemotion((Node) currentNodes[i]);
+                }
                 ArrayUtils.bubbleDown(currentNodes, i, replicaCount - 1 - counter);
                 counter++;
               }
             }
+            candidateCount -= counter;
           }
 
           // When:
@@ -180,21 +366,41 @@ public class CustomLoadBalancingPolicy extends BasicLoadBalancingPolicy implemen
               && diceRoll1d4() != 1) {
 
             // Send it to the back of the replicas
+            if (metrics != null) {
+              metrics.onNewlyUpDemotion(newestUpReplica);
+            }
             ArrayUtils.bubbleDown(
                 currentNodes, newestUpReplica == currentNodes[0] ? 0 : 1, replicaCount - 1);
+            candidateCount--;
           }
 
-          // Reorder the first two replicas in the shuffled list based on the number of
-          // in-flight requests
-          if (getInFlight((Node) currentNodes[0], session)
-              > getInFlight((Node) currentNodes[1], session)) {
-            ArrayUtils.swap(currentNodes, 0, 1);
+          if (replicaSelection == ReplicaSelection.SHUFFLE) {
+            // Reorder the first two replicas in the shuffled list based on the number of
+            // in-flight requests, then on their recent latency
+            Node first = (Node) currentNodes[0];
+            Node second = (Node) currentNodes[1];
+            int firstInFlight = getInFlight(first);
+            int secondInFlight = getInFlight(second);
+            if (firstInFlight > secondInFlight
+                || (firstInFlight == secondInFlight
+                    && getLatencyNanos(first, now) > getLatencyNanos(second, now))) {
+              if (metrics != null) {
+                metrics.onInFlightSwap(first);
+              }
+              ArrayUtils.swap(currentNodes, 0, 1);
+            }
           }
         }
+
+        if (replicaSelection != ReplicaSelection.SHUFFLE && candidateCount > 1) {
+          selectByCost(currentNodes, candidateCount, now, metrics);
+        }
       }
     }
 
-    LOG.trace("[{}] Prioritizing {} local replicas", logPrefix, replicaCount);
+    if (LOG.isTraceEnabled()) {
+      LOG.trace("[{}] Prioritizing {} local replicas", logPrefix, replicaCount);
+    }
 
     // Round-robin the remaining nodes
     ArrayUtils.rotate(
@@ -202,11 +408,40 @@ public class CustomLoadBalancingPolicy extends BasicLoadBalancingPolicy implemen
         replicaCount,
         currentNodes.length - replicaCount,
         roundRobinAmount.getAndUpdate(INCREMENT));
-   
-    QueryPlan plan = currentNodes.length == 0 ? QueryPlan.EMPTY : new SimpleQueryPlan(currentNodes);
+
+    QueryPlan plan =
+        isTracked(request) ? new CountingQueryPlan(currentNodes) : new SimpleQueryPlan(currentNodes);
     return maybeAddDcFailover(request, plan);
   }
 
+  /**
+   * Moves the replica with the lowest cost to the front of the plan: the cheapest of the first two
+   * candidates (random, since they were shuffled) with {@code power-of-two-choices}, or of all of
+   * them with {@code least-cost}.
+   */
+  private void selectByCost(
+      Object[] currentNodes,
+      int candidateCount,
+      long now,
+      @Nullable LoadBalancingMetrics metrics) {
+    int count = replicaSelection == ReplicaSelection.POWER_OF_TWO_CHOICES ? 2 : candidateCount;
+    int best = 0;
+    long bestCost = getCost((Node) currentNodes[0], now);
+    for (int i = 1; i < count; i++) {
+      long cost = getCost((Node) currentNodes[i], now);
+      if (cost < bestCost) {
+        best = i;
+        bestCost = cost;
+      }
+    }
+    if (best != 0) {
+      if (metrics != null) {
+        metrics.onInFlightSwap((Node) currentNodes[0]);
+      }
+      ArrayUtils.swap(currentNodes, 0, best);
+    }
+  }
+
   @Override
   public void onNodeSuccess(
       @NonNull Request request,
@@ -214,27 +449,7 @@ public class CustomLoadBalancingPolicy extends BasicLoadBalancingPolicy implemen
       @NonNull DriverExecutionProfile executionProfile,
       @NonNull Node node,
       @NonNull String logPrefix) {
-
-        //artificially slow the response of the selected node
-        try {
-          String nodeToDegrade = "/"+config.getProperty("nodeToDegrade")+":0";
-          if (node.getBroadcastAddress().get().toString().equals(nodeToDegrade)){
-            LOGGER.info("response from node "+node.getBroadcastAddress().get()+" artificially degraded....");
-            Thread.sleep(500);
-          }
-        } catch (NumberFormatException e1) {
-          // TODO Auto-generated catch block
-          e1.printStackTrace();
-        } catch (IOException e1) {
-          // TODO Auto-generated catch block
-          e1.printStackTrace();
-        } catch (InterruptedException e) {
-          // TODO Auto-generated catch block
-          e.printStackTrace();
-        }
-
-      
-    updateResponseTimes(node);
+    updateResponseTimes(node, latencyNanos, false);
   }
 
   @Override
@@ -245,7 +460,7 @@ public class CustomLoadBalancingPolicy extends BasicLoadBalancingPolicy implemen
       @NonNull DriverExecutionProfile executionProfile,
       @NonNull Node node,
       @NonNull String logPrefix) {
-    updateResponseTimes(node);
+    updateResponseTimes(node, latencyNanos, true);
   }
 
   /** Exposed as a protected method so that it can be accessed by tests */
@@ -258,57 +473,226 @@ public class CustomLoadBalancingPolicy extends BasicLoadBalancingPolicy implemen
     return ThreadLocalRandom.current().nextInt(4);
   }
 
-  protected boolean isUnhealthy(@NonNull Node node, @NonNull Session session, long now) {
-    return isBusy(node, session) && isResponseRateInsufficient(node, now);
+  protected boolean isUnhealthy(@NonNull Node node, long now) {
+    return (isBusy(node) && isResponseRateInsufficient(node, now))
+        || isSlowerThanPeers(node, now)
+        || isErrorRateExcessive(node, now);
   }
 
-  protected boolean isBusy(@NonNull Node node, @NonNull Session session) {
-    return getInFlight(node, session) >= MAX_IN_FLIGHT_THRESHOLD;
+  protected boolean isBusy(@NonNull Node node) {
+    return getInFlight(node) >= health.inFlightThreshold;
   }
 
   protected boolean isResponseRateInsufficient(@NonNull Node node, long now) {
     // response rate is considered insufficient when less than 2 responses were obtained in
-    // the past interval delimited by RESPONSE_COUNT_RESET_INTERVAL_NANOS.
-    if (responseTimes.containsKey(node)) {
-      AtomicLongArray array = responseTimes.get(node);
-      if (array.length() == 2) {
-        long threshold = now - RESPONSE_COUNT_RESET_INTERVAL_NANOS;
-        long leastRecent = array.get(0);
-        return leastRecent - threshold < 0;
+    // the past interval delimited by responseRateIntervalNanos.
+    NodeResponseStats stats = responseStats.get(node);
+    return stats == null
+        || stats.isResponseRateInsufficient(now - health.responseRateIntervalNanos);
+  }
+
+  protected boolean isSlowerThanPeers(@NonNull Node node, long now) {
+    long latencyNanos = getLatencyNanos(node, now);
+    long peerLatencyNanos = getPeerLatencyNanos(now);
+    return latencyNanos > 0
+        && peerLatencyNanos > 0
+        && latencyNanos > peerLatencyNanos * health.slowLatencyRatio;
+  }
+
+  protected boolean isErrorRateExcessive(@NonNull Node node, long now) {
+    return getErrorRate(node, now) > health.maxErrorRate;
+  }
+
+  /**
+   * @return the median latency of the local DC nodes, or -1 if none has responded yet. The
+   *     latencies are not decayed, since they decay to this median.
+   */
+  protected long getPeerLatencyNanos(long now) {
+    long last = lastPeerLatencyRefreshNanos.get();
+    if (now - last - health.refreshIntervalNanos >= 0
+        && lastPeerLatencyRefreshNanos.compareAndSet(last, now)) {
+      Object[] nodes = localNodes;
+      long[] latencies = new long[nodes.length];
+      int count = 0;
+      for (Object node : nodes) {
+        NodeResponseStats stats = responseStats.get(node);
+        long latencyNanos = stats == null ? -1 : stats.getLatencyNanos();
+        if (latencyNanos >= 0) {
+          latencies[count++] = latencyNanos;
+        }
+      }
+      if (count > 0) {
+        Arrays.sort(latencies, 0, count);
+        peerLatencyNanos = latencies[count / 2];
       }
     }
-    return true;
-  }
-
-  protected void updateResponseTimes(@NonNull Node node) {
-    responseTimes.compute(
-        node,
-        (n, array) -> {
-          // The array stores at most two timestamps, since we don't need more;
-          // the first one is always the least recent one, and hence the one to inspect.
-          long now = nanoTime();
-          if (array == null) {
-            array = new AtomicLongArray(1);
-            array.set(0, now);
-          } else if (array.length() == 1) {
-            long previous = array.get(0);
-            array = new AtomicLongArray(2);
-            array.set(0, previous);
-            array.set(1, now);
-          } else {
-            array.set(0, array.get(1));
-            array.set(1, now);
-          }
-          return array;
-        });
+    return peerLatencyNanos;
+  }
+
+  /**
+   * @return the expected wait of a new request on the node: its requests in flight, plus the new
+   *     one, times its recent latency. A node that has not responded yet is assumed to have the
+   *     median latency of its peers (or, before any response, only its in-flight count counts).
+   */
+  protected long getCost(@NonNull Node node, long now) {
+    long latencyNanos = getLatencyNanos(node, now);
+    if (latencyNanos < 0) {
+      latencyNanos = getPeerLatencyNanos(now);
+    }
+    return (getInFlight(node) + 1L) * Math.max(latencyNanos, 1);
   }
 
-  protected int getInFlight(@NonNull Node node, @NonNull Session session) {
-    // The cast will always succeed because there's no way to replace the internal session impl
-    ChannelPool pool = ((DefaultSession) session).getPools().get(node);
-    // Note: getInFlight() includes orphaned ids, which is what we want as we need to account
-    // for requests that were cancelled or timed out (since the node is likely to still be
-    // processing them).
-    return (pool == null) ? 0 : pool.getInFlight();
+  /**
+   * @return the moving average of the node's latency, decayed to the latency of its peers since its
+   *     last response, or -1 if it has not responded yet.
+   */
+  protected long getLatencyNanos(@NonNull Node node, long now) {
+    NodeResponseStats stats = responseStats.get(node);
+    return stats == null
+        ? -1
+        : stats.getLatencyNanos(now, health.statsHalfLifeNanos, getPeerLatencyNanos(now));
+  }
+
+  /**
+   * @return the fraction of the node's recent responses that were errors, decayed since its last
+   *     response, or -1 if it has not responded yet.
+   */
+  protected double getErrorRate(@NonNull Node node, long now) {
+    NodeResponseStats stats = responseStats.get(node);
+    return stats == null ? -1 : stats.getErrorRate(now, health.statsHalfLifeNanos);
+  }
+
+  protected void updateResponseTimes(@NonNull Node node, long latencyNanos, boolean error) {
+    long now = nanoTime();
+    inFlightCounters.decrement(node, now, latencyNanos);
+    NodeResponseStats stats = responseStats.get(node);
+    if (stats == null) {
+      // only allocates on the first response of each node
+      stats = responseStats.computeIfAbsent(node, n -> new NodeResponseStats());
+    }
+    long sampleNanos = error ? Math.max(latencyNanos, getErrorLatencyNanos(now)) : latencyNanos;
+    stats.update(sampleNanos, now, error, health.statsHalfLifeNanos, getPeerLatencyNanos(now));
+  }
+
+  /**
+   * @return the latency recorded for an error, whatever its actual latency: twice the latency from
+   *     which a node is slower than its peers, so that a node failing most of its requests looks
+   *     slow even if it fails them fast (or -1 if the peers have not responded yet).
+   */
+  protected long getErrorLatencyNanos(long now) {
+    long peerLatencyNanos = getPeerLatencyNanos(now);
+    return peerLatencyNanos < 0 ? -1 : (long) (2 * health.slowLatencyRatio * peerLatencyNanos);
+  }
+
+  protected int getInFlight(@NonNull Node node) {
+    // Note: this includes the requests that were abandoned (cancelled or timed out) until they
+    // expire, which is what we want since the node is likely to still be processing them.
+    return inFlightCounters.get(node);
+  }
+
+  /**
+   * @return whether the driver reports the responses to this request to the request trackers, so
+   *     that its count of requests in flight is decremented
+   */
+  protected boolean isTracked(@Nullable Request request) {
+    return request instanceof Statement || request instanceof GraphStatement;
+  }
+
+  /** A query plan that counts the requests sent to its nodes, as the driver takes them. */
+  private class CountingQueryPlan extends SimpleQueryPlan {
+
+    CountingQueryPlan(Object[] nodes) {
+      super(nodes);
+    }
+
+    @Nullable
+    @Override
+    public Node poll() {
+      Node node = super.poll();
+      if (node != null) {
+        inFlightCounters.increment(node, nanoTime());
+      }
+      return node;
+    }
+  }
+
+  /** How the first replica of a query plan is chosen. */
+  private enum ReplicaSelection {
+    SHUFFLE,
+    POWER_OF_TWO_CHOICES,
+    LEAST_COST,
+    ;
+
+    static ReplicaSelection fromConfig(String value) {
+      try {
+        return valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(
+            "Invalid replica-selection "
+                + value
+                + ", expected shuffle, power-of-two-choices or least-cost",
+            e);
+      }
+    }
+  }
+
+  /** The thresholds of {@link #isUnhealthy}, read together from the configuration. */
+  private static final class HealthSettings {
+
+    final int inFlightThreshold;
+    final long responseRateIntervalNanos;
+    final long newlyUpIntervalNanos;
+    final double slowLatencyRatio;
+    final double maxErrorRate;
+    final long refreshIntervalNanos;
+    final long statsHalfLifeNanos;
+
+    HealthSettings(DriverExecutionProfile profile) {
+      this.inFlightThreshold =
+          profile.getInt(CustomDriverOption.LOAD_BALANCING_HEALTH_IN_FLIGHT_THRESHOLD, 10);
+      this.responseRateIntervalNanos =
+          profile
+              .getDuration(
+                  CustomDriverOption.LOAD_BALANCING_HEALTH_RESPONSE_RATE_INTERVAL,
+                  Duration.ofMillis(200))
+              .toNanos();
+      this.newlyUpIntervalNanos =
+          profile
+              .getDuration(
+                  CustomDriverOption.LOAD_BALANCING_HEALTH_NEWLY_UP_INTERVAL, Duration.ofMinutes(1))
+              .toNanos();
+      this.slowLatencyRatio =
+          profile.getDouble(CustomDriverOption.LOAD_BALANCING_HEALTH_SLOW_LATENCY_RATIO, 3.0);
+      this.maxErrorRate =
+          profile.getDouble(CustomDriverOption.LOAD_BALANCING_HEALTH_MAX_ERROR_RATE, 0.2);
+      this.refreshIntervalNanos =
+          profile
+              .getDuration(
+                  CustomDriverOption.LOAD_BALANCING_HEALTH_REFRESH_INTERVAL, Duration.ofMillis(100))
+              .toNanos();
+      this.statsHalfLifeNanos =
+          Math.max(
+              1,
+              profile
+                  .getDuration(
+                      CustomDriverOption.LOAD_BALANCING_HEALTH_STATS_HALF_LIFE,
+                      Duration.ofSeconds(1))
+                  .toNanos());
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "in-flight-threshold=%d, response-rate-interval=%d ms, newly-up-interval=%d ms, "
+              + "slow-latency-ratio=%s, max-error-rate=%s, refresh-interval=%d ms, "
+              + "stats-half-life=%d ms",
+          inFlightThreshold,
+          NANOSECONDS.toMillis(responseRateIntervalNanos),
+          NANOSECONDS.toMillis(newlyUpIntervalNanos),
+          slowLatencyRatio,
+          maxErrorRate,
+          NANOSECONDS.toMillis(refreshIntervalNanos),
+          NANOSECONDS.toMillis(statsHalfLifeNanos));
+    }
   }
-}
\ No newline at end of file
+}
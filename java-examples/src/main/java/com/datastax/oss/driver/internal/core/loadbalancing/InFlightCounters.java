@@ -0,0 +1,230 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.datastax.oss.driver.internal.core.loadbalancing;
+
+import com.datastax.oss.driver.api.core.metadata.Node;
+import java.util.concurrent.atomic.LongAdder;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Per-node counts of the requests sent and not answered yet, kept by {@link
+ * CustomLoadBalancingPolicy} instead of reading the in-flight counts of the session's channel
+ * pools.
+ *
+ * <p>A request is counted when the driver takes its node from a query plan, and uncounted when the
+ * request tracker reports the node's response or error. The driver abandons some executions
+ * without reporting them to the tracker: those that time out, the speculative executions that lost
+ * the race, and the nodes skipped because they had no connection. They stay counted until the
+ * request timeout, like orphaned stream ids, which the node may still be processing. To that end,
+ * the counts are kept in two generations, each covering half of the timeout; when a new generation
+ * starts, the oldest one is dropped, with the requests it still counted.
+ *
+ * <p>Each node gets a slot when it is added, and its counters are stored at that index in the
+ * arrays of the generations; slots are found in an open-addressing table, by identity, so the hot
+ * path does not use maps. The counters are {@link LongAdder}s, striped so that concurrent requests
+ * to the same node do not contend.
+ */
+@ThreadSafe
+class InFlightCounters {
+
+  private static final int INITIAL_CAPACITY = 8;
+
+  private final long generationNanos;
+
+  // Replaced as a whole when nodes are added or removed, or when a new generation starts
+  private volatile Slots slots = Slots.EMPTY;
+  private volatile Generation current;
+  private volatile Generation previous;
+  private int nextSlot;
+
+  /**
+   * @param expiryNanos how long an unanswered request is counted, at most.
+   * @param now the current {@link System#nanoTime()} value.
+   */
+  InFlightCounters(long expiryNanos, long now) {
+    this.generationNanos = Math.max(1, expiryNanos / 2);
+    this.current = new Generation(now, new LongAdder[INITIAL_CAPACITY]);
+    this.previous = new Generation(now - generationNanos, new LongAdder[INITIAL_CAPACITY]);
+  }
+
+  synchronized void add(Node node) {
+    if (slots.find(node) >= 0) {
+      return;
+    }
+    int slot = nextSlot++;
+    if (slot >= current.counters.length) {
+      current = current.grow();
+      previous = previous.grow();
+    }
+    // published last, so that the counters of the slot exist when it is found
+    slots = slots.with(node, slot);
+  }
+
+  synchronized void remove(Node node) {
+    // the slot is not reused, its counters are just left behind
+    slots = slots.without(node);
+  }
+
+  /** Counts a request sent to the node, unless the node was not added. */
+  void increment(Node node, long now) {
+    int slot = slots.find(node);
+    if (slot >= 0) {
+      Generation current = this.current;
+      if (now - current.startNanos - generationNanos >= 0) {
+        current = startGeneration(now);
+      }
+      current.counters[slot].increment();
+    }
+  }
+
+  /**
+   * Uncounts a request answered by the node, in the generation it was counted in (or not at all if
+   * it has expired).
+   */
+  void decrement(Node node, long now, long latencyNanos) {
+    int slot = slots.find(node);
+    if (slot >= 0) {
+      long sentNanos = now - latencyNanos;
+      Generation current = this.current;
+      if (sentNanos - current.startNanos >= 0) {
+        current.counters[slot].decrement();
+      } else {
+        Generation previous = this.previous;
+        if (sentNanos - previous.startNanos >= 0) {
+          previous.counters[slot].decrement();
+        }
+      }
+    }
+  }
+
+  /** @return the requests in flight to the node, or 0 if it was not added. */
+  int get(Node node) {
+    int slot = slots.find(node);
+    if (slot < 0) {
+      return 0;
+    }
+    long count = current.counters[slot].sum() + previous.counters[slot].sum();
+    // transiently negative when a request is answered while a new generation starts
+    return (int) Math.max(0, count);
+  }
+
+  private synchronized Generation startGeneration(long now) {
+    Generation current = this.current;
+    if (now - current.startNanos - generationNanos < 0) {
+      // started concurrently
+      return current;
+    }
+    int capacity = current.counters.length;
+    // after a long idle period, the current generation has expired too
+    previous =
+        now - current.startNanos - 2 * generationNanos < 0
+            ? current
+            : new Generation(now - generationNanos, new LongAdder[capacity]);
+    this.current = new Generation(now, new LongAdder[capacity]);
+    return this.current;
+  }
+
+  private static final class Generation {
+
+    final long startNanos;
+    final LongAdder[] counters;
+
+    /** Fills the missing counters. */
+    Generation(long startNanos, LongAdder[] counters) {
+      this.startNanos = startNanos;
+      this.counters = counters;
+      for (int i = 0; i < counters.length; i++) {
+        if (counters[i] == null) {
+          counters[i] = new LongAdder();
+        }
+      }
+    }
+
+    /** @return the same generation, with twice as many slots. */
+    Generation grow() {
+      LongAdder[] counters = new LongAdder[this.counters.length * 2];
+      System.arraycopy(this.counters, 0, counters, 0, this.counters.length);
+      return new Generation(startNanos, counters);
+    }
+  }
+
+  /** An immutable open-addressing table from nodes (by identity) to their slot. */
+  private static final class Slots {
+
+    static final Slots EMPTY = new Slots(new Object[2], new int[2], 0);
+
+    private final Object[] nodes;
+    private final int[] slots;
+    private final int size;
+
+    private Slots(Object[] nodes, int[] slots, int size) {
+      this.nodes = nodes;
+      this.slots = slots;
+      this.size = size;
+    }
+
+    /** A table to fill with that many nodes, at most half full so that probes stay short. */
+    private Slots(int size) {
+      this(new Object[tableLength(size)], new int[tableLength(size)], size);
+    }
+
+    int find(Node node) {
+      Object[] nodes = this.nodes;
+      int mask = nodes.length - 1;
+      for (int i = hash(node) & mask; ; i = (i + 1) & mask) {
+        Object candidate = nodes[i];
+        if (candidate == node) {
+          return slots[i];
+        }
+        if (candidate == null) {
+          return -1;
+        }
+      }
+    }
+
+    Slots with(Node node, int slot) {
+      Slots result = new Slots(size + 1);
+      copyTo(result, null);
+      result.put(node, slot);
+      return result;
+    }
+
+    Slots without(Node node) {
+      if (find(node) < 0) {
+        return this;
+      }
+      Slots result = new Slots(size - 1);
+      copyTo(result, node);
+      return result;
+    }
+
+    private void copyTo(Slots target, Node excluded) {
+      for (int i = 0; i < nodes.length; i++) {
+        if (nodes[i] != null && nodes[i] != excluded) {
+          target.put((Node) nodes[i], slots[i]);
+        }
+      }
+    }
+
+    /** Only called while building a new table, before it is published. */
+    private void put(Node node, int slot) {
+      int mask = nodes.length - 1;
+      int i = hash(node) & mask;
+      while (nodes[i] != null) {
+        i = (i + 1) & mask;
+      }
+      nodes[i] = node;
+      slots[i] = slot;
+    }
+
+    private static int tableLength(int size) {
+      return Math.max(2, Integer.highestOneBit(Math.max(1, size) * 4 - 1));
+    }
+
+    private static int hash(Node node) {
+      int h = System.identityHashCode(node);
+      return h ^ (h >>> 16);
+    }
+  }
+}
@@ -0,0 +1,126 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.datastax.oss.driver.internal.core.loadbalancing;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Per-node counters of the decisions of {@link CustomLoadBalancingPolicy}, and gauges of the
+ * response statistics it bases them on, exposed in the driver's metric registry.
+ *
+ * <p>Metrics are named like the driver's node metrics, under a {@code load-balancing} prefix, for
+ * example {@code s0.nodes.10_0_3_5:9042.load-balancing.unhealthy-demotions}:
+ *
+ * <ul>
+ *   <li>{@code unhealthy-demotions}: times the node was moved to the back of the replicas because
+ *       it was unhealthy;
+ *   <li>{@code newly-up-demotions}: times the node was moved to the back of the replicas because it
+ *       just came back UP;
+ *   <li>{@code in-flight-swaps}: times the node lost the first position of a query plan to
+ *       another replica, because it had more requests in flight or a higher latency (or a higher
+ *       cost, with a cost-based {@code replica-selection});
+ *   <li>{@code ewma-latency}: moving average of the node's latency, in nanoseconds (-1 before its
+ *       first response);
+ *   <li>{@code error-rate}: moving average of the fraction of the node's responses that were
+ *       errors, in parts per million (-1 before its first response).
+ * </ul>
+ *
+ * <p>The averages are the ones the policy decides on: decayed since the node's last response.
+ *
+ * <p>Counters are {@link LongAdder}s, so that updating them from concurrent query plans does not
+ * contend on a single memory location.
+ */
+@ThreadSafe
+class LoadBalancingMetrics {
+
+  private final MetricRegistry registry;
+  private final String sessionName;
+  private final CustomLoadBalancingPolicy policy;
+  private final Map<Node, NodeCounters> counters = new ConcurrentHashMap<>();
+
+  LoadBalancingMetrics(
+      MetricRegistry registry, String sessionName, CustomLoadBalancingPolicy policy) {
+    this.registry = registry;
+    this.sessionName = sessionName;
+    this.policy = policy;
+  }
+
+  void onUnhealthyDemotion(Node node) {
+    NodeCounters nodeCounters = counters.get(node);
+    if (nodeCounters != null) {
+      nodeCounters.unhealthyDemotions.increment();
+    }
+  }
+
+  void onNewlyUpDemotion(Node node) {
+    NodeCounters nodeCounters = counters.get(node);
+    if (nodeCounters != null) {
+      nodeCounters.newlyUpDemotions.increment();
+    }
+  }
+
+  void onInFlightSwap(Node node) {
+    NodeCounters nodeCounters = counters.get(node);
+    if (nodeCounters != null) {
+      nodeCounters.inFlightSwaps.increment();
+    }
+  }
+
+  /**
+   * Registers the metrics of a node, if they were not registered yet. The decisions are only
+   * counted for registered nodes: a query plan built while a node leaves the cluster must not
+   * register its metrics again.
+   */
+  void register(Node node) {
+    if (!counters.containsKey(node)) {
+      counters.computeIfAbsent(node, this::newCounters);
+    }
+  }
+
+  /** Removes the metrics of a node that left the cluster. */
+  void unregister(Node node) {
+    if (counters.remove(node) != null) {
+      String prefix = prefix(node);
+      registry.removeMatching((name, metric) -> name.startsWith(prefix));
+    }
+  }
+
+  private NodeCounters newCounters(Node node) {
+    NodeCounters nodeCounters = new NodeCounters();
+    String prefix = prefix(node);
+    register(prefix + "unhealthy-demotions", nodeCounters.unhealthyDemotions::sum);
+    register(prefix + "newly-up-demotions", nodeCounters.newlyUpDemotions::sum);
+    register(prefix + "in-flight-swaps", nodeCounters.inFlightSwaps::sum);
+    register(prefix + "ewma-latency", () -> policy.getLatencyNanos(node, policy.nanoTime()));
+    register(prefix + "error-rate", () -> errorRatePpm(node));
+    return nodeCounters;
+  }
+
+  private void register(String name, Gauge<Long> gauge) {
+    // the registry rejects duplicate names, e.g. if the node was unregistered concurrently
+    registry.remove(name);
+    registry.register(name, gauge);
+  }
+
+  private long errorRatePpm(Node node) {
+    double errorRate = policy.getErrorRate(node, policy.nanoTime());
+    return errorRate < 0 ? -1 : (long) (errorRate * 1_000_000);
+  }
+
+  private String prefix(Node node) {
+    return sessionName + ".nodes." + node.getEndPoint().asMetricPrefix() + ".load-balancing.";
+  }
+
+  private static class NodeCounters {
+    final LongAdder unhealthyDemotions = new LongAdder();
+    final LongAdder newlyUpDemotions = new LongAdder();
+    final LongAdder inFlightSwaps = new LongAdder();
+  }
+}
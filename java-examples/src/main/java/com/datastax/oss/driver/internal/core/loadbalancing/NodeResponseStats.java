@@ -0,0 +1,138 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.datastax.oss.driver.internal.core.loadbalancing;
+
+import java.util.concurrent.atomic.AtomicLong;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Recent response statistics of a single node: exponentially-weighted moving averages of its
+ * latency and error rate, and the timestamps of its two most recent responses.
+ *
+ * <p>The averages are also decayed over time: for each half-life elapsed since the node's last
+ * response, the error rate is halved, and the latency moves half of the way to a target given by
+ * the caller (the latency of the node's peers). Otherwise a node that gets no requests because of
+ * its statistics would keep them forever; instead, it gets requests again once they have decayed
+ * enough, and its next responses tell whether it has recovered. A node that is idle, rather than
+ * avoided, ends up with the latency of its peers: neither faster nor slower than them.
+ *
+ * <p>Updates are lock-free and allocation-free, since they happen on every response.
+ */
+@ThreadSafe
+class NodeResponseStats {
+
+  /** Weight of a new sample in the moving average, as a power of two (1/8, as for TCP's SRTT). */
+  private static final int EWMA_SHIFT = 3;
+
+  /** The error rate is stored in fixed point, as a fraction of this value. */
+  private static final long ERROR_RATE_ONE = 1 << 16;
+
+  private static final long NO_RESPONSE = Long.MIN_VALUE;
+
+  private final AtomicLong ewmaLatencyNanos = new AtomicLong(-1);
+  private final AtomicLong ewmaErrorRate = new AtomicLong();
+  private final AtomicLong lastResponseNanos = new AtomicLong(NO_RESPONSE);
+  private final AtomicLong previousResponseNanos = new AtomicLong(NO_RESPONSE);
+  private final AtomicLong responseCount = new AtomicLong();
+
+  /**
+   * @param latencyNanos the latency to average: for an error, the caller can pass a penalty instead
+   *     of the actual latency, since a node that fails fast must not look fast.
+   * @param halfLifeNanos the averages are decayed by the time elapsed since the previous response
+   *     before the new sample is added.
+   * @param targetLatencyNanos the latency the average decays to, or -1 to not decay it.
+   */
+  void update(
+      long latencyNanos, long now, boolean error, long halfLifeNanos, long targetLatencyNanos) {
+    // Concurrent responses can be recorded in any order. The last timestamp is the most recent
+    // one, and each update offers the older of its timestamp and the one it replaced as the
+    // previous timestamp, which keeps the most recent offer: once the updates are done, they are
+    // the two most recent timestamps, and the previous one is never ahead of the last one.
+    long last = lastResponseNanos.getAndAccumulate(now, NodeResponseStats::mostRecent);
+    if (last != NO_RESPONSE) {
+      previousResponseNanos.accumulateAndGet(
+          leastRecent(last, now), NodeResponseStats::mostRecent);
+    }
+    responseCount.incrementAndGet();
+    int halvings = last == NO_RESPONSE ? 0 : halvings(now - last, halfLifeNanos);
+    long current;
+    long next;
+    long sample = error ? ERROR_RATE_ONE : 0;
+    do {
+      current = ewmaErrorRate.get();
+      long decayed = current >> halvings;
+      next = decayed + ((sample - decayed) >> EWMA_SHIFT);
+    } while (current != next && !ewmaErrorRate.compareAndSet(current, next));
+    do {
+      current = ewmaLatencyNanos.get();
+      long decayed = decay(current, targetLatencyNanos, halvings);
+      next = current < 0 ? latencyNanos : decayed + ((latencyNanos - decayed) >> EWMA_SHIFT);
+    } while (!ewmaLatencyNanos.compareAndSet(current, next));
+  }
+
+  /** @return the moving average of the latency, as of the last response, or -1 if none yet. */
+  long getLatencyNanos() {
+    return ewmaLatencyNanos.get();
+  }
+
+  /**
+   * @param targetLatencyNanos the latency the average decays to, or -1 to not decay it.
+   * @return the moving average of the latency, decayed by the time elapsed since the last response,
+   *     or -1 if no response was received yet.
+   */
+  long getLatencyNanos(long now, long halfLifeNanos, long targetLatencyNanos) {
+    long latencyNanos = ewmaLatencyNanos.get();
+    return latencyNanos < 0
+        ? latencyNanos
+        : decay(latencyNanos, targetLatencyNanos, halvingsSinceLastResponse(now, halfLifeNanos));
+  }
+
+  /** @return the error rate, decayed by the time elapsed since the last response. */
+  double getErrorRate(long now, long halfLifeNanos) {
+    long errorRate = ewmaErrorRate.get() >> halvingsSinceLastResponse(now, halfLifeNanos);
+    return (double) errorRate / ERROR_RATE_ONE;
+  }
+
+  long getResponseCount() {
+    return responseCount.get();
+  }
+
+  /**
+   * @return whether less than 2 responses were obtained since {@code threshold} (a {@link
+   *     System#nanoTime()} value).
+   */
+  boolean isResponseRateInsufficient(long threshold) {
+    if (responseCount.get() < 2) {
+      return true;
+    }
+    return previousResponseNanos.get() - threshold < 0;
+  }
+
+  /** @return the number of half-lives elapsed since the last response. */
+  private int halvingsSinceLastResponse(long now, long halfLifeNanos) {
+    long last = lastResponseNanos.get();
+    return last == NO_RESPONSE ? 0 : halvings(now - last, halfLifeNanos);
+  }
+
+  /** Moves the latency half of the way to the target for each halving. */
+  private static long decay(long latencyNanos, long targetLatencyNanos, int halvings) {
+    return latencyNanos < 0 || targetLatencyNanos < 0
+        ? latencyNanos
+        : targetLatencyNanos + ((latencyNanos - targetLatencyNanos) >> halvings);
+  }
+
+  private static int halvings(long elapsedNanos, long halfLifeNanos) {
+    // concurrent responses can be recorded after more recent ones
+    return elapsedNanos <= 0 ? 0 : (int) Math.min(Long.SIZE - 1, elapsedNanos / halfLifeNanos);
+  }
+
+  /** Compares {@link System#nanoTime()} values, which can overflow. */
+  private static long mostRecent(long a, long b) {
+    return a == NO_RESPONSE || b - a > 0 ? b : a;
+  }
+
+  private static long leastRecent(long a, long b) {
+    return b - a > 0 ? a : b;
+  }
+}
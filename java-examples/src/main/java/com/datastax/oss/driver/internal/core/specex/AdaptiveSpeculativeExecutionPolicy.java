@@ -0,0 +1,321 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.datastax.oss.driver.internal.core.specex;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import com.azure.cassandrami.util.CustomDriverOption;
+import com.datastax.dse.driver.internal.core.tracker.MultiplexingRequestTracker;
+import com.datastax.oss.driver.api.core.CqlIdentifier;
+import com.datastax.oss.driver.api.core.config.DefaultDriverOption;
+import com.datastax.oss.driver.api.core.config.DriverExecutionProfile;
+import com.datastax.oss.driver.api.core.context.DriverContext;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.api.core.session.Request;
+import com.datastax.oss.driver.api.core.specex.SpeculativeExecutionPolicy;
+import com.datastax.oss.driver.api.core.tracker.RequestTracker;
+import com.datastax.oss.driver.internal.core.config.ConfigChangeEvent;
+import com.datastax.oss.driver.internal.core.context.InternalDriverContext;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import net.jcip.annotations.ThreadSafe;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A speculative execution policy that derives its delay from the observed latencies of each node,
+ * instead of using a constant delay.
+ *
+ * <p>Successful responses are recorded per node through the {@link RequestTracker} callbacks; the
+ * delay before the next execution is the configured percentile of the latencies of the node that
+ * is currently being queried, clamped between {@code min-delay} and {@code max-delay}. Until enough
+ * samples were collected, the configured {@code delay} is used.
+ *
+ * <p>Speculative executions are also rate-limited cluster-wide: every completed request earns
+ * {@code max-speculative-ratio} credits, every speculative execution consumes one, and no new
+ * speculative execution is scheduled while the credits are exhausted. This prevents speculation
+ * from multiplying the load on a cluster that is already struggling.
+ *
+ * <p>The options are read again when the driver configuration is reloaded; the latencies collected
+ * so far are kept.
+ *
+ * <p>To activate this policy, modify the {@code advanced.speculative-execution-policy} section in
+ * the driver configuration, for example:
+ *
+ * <pre>
+ * datastax-java-driver {
+ *   advanced.speculative-execution-policy {
+ *     class = AdaptiveSpeculativeExecutionPolicy
+ *     max-executions = 3
+ *     delay = 100 milliseconds
+ *     percentile = 95.0
+ *     min-delay = 2 milliseconds
+ *     max-delay = 500 milliseconds
+ *     min-samples = 100
+ *     refresh-interval = 1 second
+ *     max-speculative-ratio = 0.1
+ *     max-speculative-burst = 100
+ *   }
+ * }
+ * </pre>
+ */
+@ThreadSafe
+public class AdaptiveSpeculativeExecutionPolicy implements SpeculativeExecutionPolicy, RequestTracker {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(AdaptiveSpeculativeExecutionPolicy.class);
+
+  private static final long HIGHEST_TRACKABLE_LATENCY_NANOS = MINUTES.toNanos(2);
+  private static final int SIGNIFICANT_DIGITS = 2;
+  private static final long NANOS_PER_MILLI = MILLISECONDS.toNanos(1);
+
+  /** Credits are kept in thousandths of an execution, so that fractional ratios stay exact. */
+  private static final long CREDIT_UNIT = 1000;
+
+  private final DriverContext context;
+  private final String profileName;
+  private final Object configListenerKey;
+
+  // Replaced as a whole when the configuration is reloaded
+  private volatile Settings settings;
+
+  private final AtomicLong credits;
+  private final LatencyWindow allNodes = new LatencyWindow();
+  private final ConcurrentMap<Node, LatencyWindow> nodeLatencies = new ConcurrentHashMap<>();
+
+  public AdaptiveSpeculativeExecutionPolicy(
+      @NonNull DriverContext context, @NonNull String profileName) {
+    this.context = context;
+    this.profileName = profileName;
+    this.settings = new Settings(context.getConfig().getProfile(profileName));
+    this.credits = new AtomicLong(settings.maxCredits);
+
+    this.configListenerKey =
+        ((InternalDriverContext) context)
+            .getEventBus()
+            .register(ConfigChangeEvent.class, this::onConfigChange);
+    ((MultiplexingRequestTracker) context.getRequestTracker()).register(this);
+  }
+
+  @Override
+  public long nextExecution(
+      @NonNull Node node,
+      @Nullable CqlIdentifier keyspace,
+      @NonNull Request request,
+      int runningExecutions) {
+    assert runningExecutions >= 1;
+    Settings settings = this.settings;
+    if (runningExecutions > 1) {
+      // The driver asks for the next delay right after sending each execution, so this call
+      // means that a speculative execution was just started.
+      credits.addAndGet(-CREDIT_UNIT);
+    }
+    if (runningExecutions >= settings.maxExecutions || credits.get() < CREDIT_UNIT) {
+      return -1;
+    }
+    long now = nanoTime();
+    LatencyWindow window = nodeLatencies.get(node);
+    long delayMillis = window == null ? -1 : window.delayMillis(now);
+    if (delayMillis < 0) {
+      delayMillis = allNodes.delayMillis(now);
+    }
+    return delayMillis < 0 ? settings.initialDelayMillis : delayMillis;
+  }
+
+  @Override
+  public void onNodeSuccess(
+      @NonNull Request request,
+      long latencyNanos,
+      @NonNull DriverExecutionProfile executionProfile,
+      @NonNull Node node,
+      @NonNull String logPrefix) {
+    LatencyWindow window = nodeLatencies.get(node);
+    if (window == null) {
+      window = nodeLatencies.computeIfAbsent(node, n -> new LatencyWindow());
+    }
+    window.record(latencyNanos);
+    allNodes.record(latencyNanos);
+  }
+
+  @Override
+  public void onSuccess(
+      @NonNull Request request,
+      long latencyNanos,
+      @NonNull DriverExecutionProfile executionProfile,
+      @NonNull Node node,
+      @NonNull String logPrefix) {
+    addCredit();
+  }
+
+  @Override
+  public void onError(
+      @NonNull Request request,
+      @NonNull Throwable error,
+      long latencyNanos,
+      @NonNull DriverExecutionProfile executionProfile,
+      @Nullable Node node,
+      @NonNull String logPrefix) {
+    addCredit();
+  }
+
+  @Override
+  public void close() {
+    ((InternalDriverContext) context)
+        .getEventBus()
+        .unregister(configListenerKey, ConfigChangeEvent.class);
+  }
+
+  private void onConfigChange(@SuppressWarnings("unused") ConfigChangeEvent event) {
+    Settings settings;
+    try {
+      settings = new Settings(context.getConfig().getProfile(profileName));
+    } catch (IllegalArgumentException e) {
+      LOG.warn(
+          "Invalid speculative execution settings, keeping the previous ones: {}", e.getMessage());
+      return;
+    }
+    this.settings = settings;
+    // a lower burst takes effect immediately
+    credits.accumulateAndGet(settings.maxCredits, Math::min);
+    LOG.info("Speculative execution settings reloaded");
+  }
+
+  /** Exposed as a protected method so that it can be accessed by tests */
+  protected long nanoTime() {
+    return System.nanoTime();
+  }
+
+  private void addCredit() {
+    Settings settings = this.settings;
+    long current;
+    do {
+      current = credits.get();
+      if (current >= settings.maxCredits) {
+        return;
+      }
+    } while (!credits.compareAndSet(
+        current, Math.min(settings.maxCredits, current + settings.creditPerRequest)));
+  }
+
+  /**
+   * Latencies observed for one node (or for all nodes). Recording is wait-free; the percentile is
+   * recomputed at most once per refresh interval, by whichever thread asks for it first.
+   */
+  private class LatencyWindow {
+
+    private final Recorder recorder =
+        new Recorder(HIGHEST_TRACKABLE_LATENCY_NANOS, SIGNIFICANT_DIGITS);
+    private final AtomicLong lastRefreshNanos = new AtomicLong(nanoTime());
+
+    // guarded by this
+    private final Histogram accumulated =
+        new Histogram(HIGHEST_TRACKABLE_LATENCY_NANOS, SIGNIFICANT_DIGITS);
+    private Histogram interval;
+
+    private volatile long delayMillis = -1;
+
+    void record(long latencyNanos) {
+      recorder.recordValue(Math.min(Math.max(latencyNanos, 0), HIGHEST_TRACKABLE_LATENCY_NANOS));
+    }
+
+    long delayMillis(long now) {
+      long last = lastRefreshNanos.get();
+      if (now - last - settings.refreshIntervalNanos >= 0
+          && lastRefreshNanos.compareAndSet(last, now)) {
+        refresh();
+      }
+      return delayMillis;
+    }
+
+    private synchronized void refresh() {
+      Settings settings = AdaptiveSpeculativeExecutionPolicy.this.settings;
+      interval = recorder.getIntervalHistogram(interval);
+      accumulated.add(interval);
+      // Sparse nodes keep accumulating until there are enough samples for a meaningful percentile
+      if (accumulated.getTotalCount() >= settings.minSamples) {
+        long delayNanos = settings.clamp(accumulated.getValueAtPercentile(settings.percentile));
+        // rounded up: truncated, a delay under 1 ms would launch the speculative executions at once
+        delayMillis = (delayNanos + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI;
+        LOG.debug(
+            "Speculative execution delay set to {} ms (p{})", delayMillis, settings.percentile);
+        accumulated.reset();
+      }
+    }
+  }
+
+  /** The options of the policy, read together from the configuration. */
+  private static final class Settings {
+
+    final int maxExecutions;
+    final long initialDelayMillis;
+    final double percentile;
+    final long minDelayNanos;
+    final long maxDelayNanos;
+    final long minSamples;
+    final long refreshIntervalNanos;
+    final long creditPerRequest;
+    final long maxCredits;
+
+    Settings(DriverExecutionProfile profile) {
+      this.maxExecutions = profile.getInt(DefaultDriverOption.SPECULATIVE_EXECUTION_MAX);
+      if (maxExecutions < 1) {
+        throw new IllegalArgumentException(
+            String.format(
+                "%s must be at least 1", DefaultDriverOption.SPECULATIVE_EXECUTION_MAX.getPath()));
+      }
+      this.maxDelayNanos =
+          profile
+              .getDuration(
+                  CustomDriverOption.SPECULATIVE_EXECUTION_MAX_DELAY, Duration.ofMillis(500))
+              .toNanos();
+      this.minDelayNanos =
+          profile
+              .getDuration(CustomDriverOption.SPECULATIVE_EXECUTION_MIN_DELAY, Duration.ofMillis(2))
+              .toNanos();
+      if (minDelayNanos < 0 || minDelayNanos > maxDelayNanos) {
+        throw new IllegalArgumentException(
+            String.format(
+                "%s must be positive or 0, and not greater than %s",
+                CustomDriverOption.SPECULATIVE_EXECUTION_MIN_DELAY.getPath(),
+                CustomDriverOption.SPECULATIVE_EXECUTION_MAX_DELAY.getPath()));
+      }
+      this.initialDelayMillis =
+          profile
+              .getDuration(
+                  DefaultDriverOption.SPECULATIVE_EXECUTION_DELAY, Duration.ofNanos(maxDelayNanos))
+              .toMillis();
+      this.percentile =
+          profile.getDouble(CustomDriverOption.SPECULATIVE_EXECUTION_PERCENTILE, 95.0);
+      if (percentile <= 0 || percentile > 100) {
+        throw new IllegalArgumentException(
+            String.format(
+                "%s must be in the range (0, 100]",
+                CustomDriverOption.SPECULATIVE_EXECUTION_PERCENTILE.getPath()));
+      }
+      this.minSamples = profile.getInt(CustomDriverOption.SPECULATIVE_EXECUTION_MIN_SAMPLES, 100);
+      this.refreshIntervalNanos =
+          profile
+              .getDuration(
+                  CustomDriverOption.SPECULATIVE_EXECUTION_REFRESH_INTERVAL, Duration.ofSeconds(1))
+              .toNanos();
+      this.creditPerRequest =
+          (long)
+              (profile.getDouble(CustomDriverOption.SPECULATIVE_EXECUTION_MAX_RATIO, 0.1)
+                  * CREDIT_UNIT);
+      this.maxCredits =
+          profile.getInt(CustomDriverOption.SPECULATIVE_EXECUTION_MAX_BURST, 100) * CREDIT_UNIT;
+    }
+
+    long clamp(long delayNanos) {
+      return Math.max(minDelayNanos, Math.min(maxDelayNanos, delayNanos));
+    }
+  }
+}
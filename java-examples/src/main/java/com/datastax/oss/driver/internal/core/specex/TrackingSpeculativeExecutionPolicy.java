@@ -0,0 +1,302 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.datastax.oss.driver.internal.core.specex;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.azure.cassandrami.util.CustomDriverOption;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.dse.driver.internal.core.tracker.MultiplexingRequestTracker;
+import com.datastax.oss.driver.api.core.CqlIdentifier;
+import com.datastax.oss.driver.api.core.config.DriverExecutionProfile;
+import com.datastax.oss.driver.api.core.context.DriverContext;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.api.core.metrics.Metrics;
+import com.datastax.oss.driver.api.core.session.Request;
+import com.datastax.oss.driver.api.core.specex.SpeculativeExecutionPolicy;
+import com.datastax.oss.driver.api.core.tracker.RequestTracker;
+import com.datastax.oss.driver.internal.core.config.ConfigChangeEvent;
+import com.datastax.oss.driver.internal.core.context.InternalDriverContext;
+import com.datastax.oss.driver.internal.core.util.Reflection;
+import com.datastax.oss.driver.shaded.guava.common.collect.MapMaker;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A speculative execution policy that delegates its decisions to another policy, and records the
+ * outcome of every request that it schedules executions for.
+ *
+ * <p>The delegate is asked when to start each execution, so the number of executions launched for
+ * a request is known; the {@link RequestTracker} callbacks then tell which node won. Speculative
+ * executions are sent to the next nodes of the query plan, so the winner is considered speculative
+ * if it is not the node of the first execution (a retry on the next node after an error of the
+ * first one is counted as a speculative win too).
+ *
+ * <p>When a speculative execution wins, the first attempt had not responded yet, so its latency is
+ * unknown. The latency saved is estimated as the difference between the moving average of the
+ * latency of the first node and the latency of the request, or 0 if the average is lower. A node
+ * that never responds first (for example a node that is completely degraded) has no average, and
+ * no savings are counted for it: the estimate is a lower bound.
+ *
+ * <p>Aggregate counters are exposed as gauges in the driver's metric registry (if at least one
+ * session or node metric is enabled), under {@code <session>.speculative-outcomes.}:
+ *
+ * <ul>
+ *   <li>{@code requests}: requests for which at least one speculative execution was launched;
+ *   <li>{@code executions}: speculative executions launched;
+ *   <li>{@code wins}: requests that were completed by a speculative execution;
+ *   <li>{@code wasted}: speculative executions whose response was discarded;
+ *   <li>{@code latency-saved}: total estimated latency saved by the wins, in nanoseconds.
+ * </ul>
+ *
+ * <p>Each request's outcome is also logged at debug level.
+ *
+ * <p>The executions of a request are tracked until the request completes or times out. The tracker
+ * is not notified of requests cancelled by the client: their entries are only held weakly, and
+ * are dropped once the requests are garbage collected.
+ *
+ * <p>When the driver configuration is reloaded, a tracked policy that reads its options only once
+ * (such as {@link ConstantSpeculativeExecutionPolicy}) is rebuilt, so that its new options (for
+ * example its {@code delay}) are applied.
+ *
+ * <p>To activate this policy, set it as the {@code class} of the speculative execution policy, and
+ * the tracked policy as its {@code tracked-class}; the other options are read by the tracked
+ * policy, for example:
+ *
+ * <pre>
+ * datastax-java-driver {
+ *   advanced.speculative-execution-policy {
+ *     class = TrackingSpeculativeExecutionPolicy
+ *     tracked-class = ConstantSpeculativeExecutionPolicy
+ *     max-executions = 3
+ *     delay = 100 milliseconds
+ *   }
+ * }
+ * </pre>
+ */
+@ThreadSafe
+public class TrackingSpeculativeExecutionPolicy
+    implements SpeculativeExecutionPolicy, RequestTracker {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(TrackingSpeculativeExecutionPolicy.class);
+
+  /** Weight of a new sample in the moving average of node latencies, as a power of 2. */
+  private static final int EWMA_SHIFT = 3;
+
+  private final InternalDriverContext context;
+  private final String profileName;
+  private final String logPrefix;
+  private final Object configListenerKey;
+  private volatile SpeculativeExecutionPolicy delegate;
+  // weak keys compared by identity: cancelled requests are never completed
+  private final ConcurrentMap<Request, Outcome> outcomes = new MapMaker().weakKeys().makeMap();
+  private final ConcurrentMap<Node, AtomicLong> nodeLatencies = new ConcurrentHashMap<>();
+
+  private final LongAdder speculatedRequests = new LongAdder();
+  private final LongAdder speculativeExecutions = new LongAdder();
+  private final LongAdder wins = new LongAdder();
+  private final LongAdder wasted = new LongAdder();
+  private final LongAdder latencySavedNanos = new LongAdder();
+
+  // null if the driver has no metric registry
+  @Nullable private final MetricRegistry registry;
+  private final String metricPrefix;
+
+  public TrackingSpeculativeExecutionPolicy(
+      @NonNull DriverContext context, @NonNull String profileName) {
+    this.context = (InternalDriverContext) context;
+    this.profileName = profileName;
+    this.logPrefix = context.getSessionName() + "|" + profileName;
+    this.delegate = buildDelegate();
+
+    this.metricPrefix = context.getSessionName() + ".speculative-outcomes.";
+    Optional<Metrics> metrics = this.context.getMetricsFactory().getMetrics();
+    if (metrics.isPresent()) {
+      this.registry = metrics.get().getRegistry();
+      register("requests", speculatedRequests);
+      register("executions", speculativeExecutions);
+      register("wins", wins);
+      register("wasted", wasted);
+      register("latency-saved", latencySavedNanos);
+    } else {
+      this.registry = null;
+      LOG.warn(
+          "[{}] The driver has no metric registry, speculative execution outcomes will only be "
+              + "logged (enable at least one session or node metric in advanced.metrics)",
+          logPrefix);
+    }
+
+    ((MultiplexingRequestTracker) context.getRequestTracker()).register(this);
+    this.configListenerKey =
+        this.context.getEventBus().register(ConfigChangeEvent.class, this::onConfigChange);
+  }
+
+  @Override
+  public long nextExecution(
+      @NonNull Node node,
+      @Nullable CqlIdentifier keyspace,
+      @NonNull Request request,
+      int runningExecutions) {
+    // The driver asks for the next delay right after sending each execution
+    if (runningExecutions == 1) {
+      outcomes.put(request, new Outcome(node));
+    } else {
+      Outcome outcome = outcomes.get(request);
+      if (outcome != null) {
+        outcome.executions = runningExecutions;
+      }
+    }
+    return delegate.nextExecution(node, keyspace, request, runningExecutions);
+  }
+
+  @Override
+  public void onNodeSuccess(
+      @NonNull Request request,
+      long latencyNanos,
+      @NonNull DriverExecutionProfile executionProfile,
+      @NonNull Node node,
+      @NonNull String logPrefix) {
+    AtomicLong average = nodeLatencies.get(node);
+    if (average == null) {
+      average = nodeLatencies.computeIfAbsent(node, n -> new AtomicLong(-1));
+    }
+    long previous = average.get();
+    // lossy under contention, like the other moving averages of the sample
+    average.set(
+        previous < 0 ? latencyNanos : previous + ((latencyNanos - previous) >> EWMA_SHIFT));
+  }
+
+  @Override
+  public void onSuccess(
+      @NonNull Request request,
+      long latencyNanos,
+      @NonNull DriverExecutionProfile executionProfile,
+      @NonNull Node node,
+      @NonNull String logPrefix) {
+    Outcome outcome = outcomes.remove(request);
+    if (outcome == null || outcome.executions == 1) {
+      return;
+    }
+    boolean speculativeWin = !node.equals(outcome.firstNode);
+    long saved = 0;
+    if (speculativeWin) {
+      AtomicLong firstNodeLatency = nodeLatencies.get(outcome.firstNode);
+      saved = firstNodeLatency == null ? 0 : Math.max(0, firstNodeLatency.get() - latencyNanos);
+    }
+    record(outcome, speculativeWin, saved);
+    LOG.debug(
+        "[{}] {} executions, won by {} ({}), {} ms saved",
+        logPrefix,
+        outcome.executions,
+        node,
+        speculativeWin ? "speculative execution" : "first execution",
+        NANOSECONDS.toMillis(saved));
+  }
+
+  @Override
+  public void onError(
+      @NonNull Request request,
+      @NonNull Throwable error,
+      long latencyNanos,
+      @NonNull DriverExecutionProfile executionProfile,
+      @Nullable Node node,
+      @NonNull String logPrefix) {
+    Outcome outcome = outcomes.remove(request);
+    if (outcome == null || outcome.executions == 1) {
+      return;
+    }
+    record(outcome, false, 0);
+    LOG.debug("[{}] {} executions, failed: {}", logPrefix, outcome.executions, error.toString());
+  }
+
+  @Override
+  public void close() {
+    context.getEventBus().unregister(configListenerKey, ConfigChangeEvent.class);
+    delegate.close();
+    if (registry != null) {
+      registry.removeMatching((name, metric) -> name.startsWith(metricPrefix));
+    }
+  }
+
+  /**
+   * Policies that read their options once, such as {@link ConstantSpeculativeExecutionPolicy}, are
+   * rebuilt. Policies that also track requests keep their state and reload their own options: they
+   * could not be unregistered from the request tracker.
+   */
+  private void onConfigChange(@SuppressWarnings("unused") ConfigChangeEvent event) {
+    SpeculativeExecutionPolicy previous = delegate;
+    if (previous instanceof RequestTracker) {
+      return;
+    }
+    try {
+      delegate = buildDelegate();
+    } catch (RuntimeException e) {
+      LOG.warn(
+          "[{}] Invalid speculative execution settings, keeping the previous ones: {}",
+          logPrefix,
+          e.getMessage());
+      return;
+    }
+    previous.close();
+    LOG.info("[{}] Speculative execution policy reloaded", logPrefix);
+  }
+
+  private SpeculativeExecutionPolicy buildDelegate() {
+    return Reflection.buildFromConfig(
+            context,
+            profileName,
+            CustomDriverOption.SPECULATIVE_EXECUTION_TRACKED_CLASS,
+            SpeculativeExecutionPolicy.class,
+            "com.datastax.oss.driver.internal.core.specex")
+        .orElseThrow(
+            () ->
+                new IllegalArgumentException(
+                    String.format(
+                        "Missing speculative execution policy, %s must be set",
+                        CustomDriverOption.SPECULATIVE_EXECUTION_TRACKED_CLASS.getPath())));
+  }
+
+  private void record(Outcome outcome, boolean speculativeWin, long savedNanos) {
+    int launched = outcome.executions - 1;
+    speculatedRequests.increment();
+    speculativeExecutions.add(launched);
+    if (speculativeWin) {
+      wins.increment();
+      wasted.add(launched - 1);
+      latencySavedNanos.add(savedNanos);
+    } else {
+      wasted.add(launched);
+    }
+  }
+
+  private void register(String name, LongAdder counter) {
+    String fullName = metricPrefix + name;
+    // the registry rejects duplicate names, e.g. if the session is recreated with the same name
+    registry.remove(fullName);
+    registry.register(fullName, (Gauge<Long>) counter::sum);
+  }
+
+  /** The executions of one request, until it completes. */
+  private static class Outcome {
+
+    final Node firstNode;
+
+    // written by the driver's timer thread
+    volatile int executions = 1;
+
+    Outcome(Node firstNode) {
+      this.firstNode = firstNode;
+    }
+  }
+}
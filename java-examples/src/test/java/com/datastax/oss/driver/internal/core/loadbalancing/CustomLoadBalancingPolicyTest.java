@@ -0,0 +1,245 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.datastax.oss.driver.internal.core.loadbalancing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.datastax.dse.driver.internal.core.tracker.MultiplexingRequestTracker;
+import com.datastax.oss.driver.api.core.ConsistencyLevel;
+import com.datastax.oss.driver.api.core.config.DriverConfig;
+import com.datastax.oss.driver.api.core.config.DriverExecutionProfile;
+import com.datastax.oss.driver.api.core.cql.SimpleStatement;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.api.core.metadata.NodeState;
+import com.datastax.oss.driver.api.core.session.Request;
+import com.datastax.oss.driver.api.core.session.Session;
+import com.datastax.oss.driver.internal.core.ConsistencyLevelRegistry;
+import com.datastax.oss.driver.internal.core.context.EventBus;
+import com.datastax.oss.driver.internal.core.context.InternalDriverContext;
+import com.datastax.oss.driver.internal.core.cql.DefaultPrepareRequest;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CustomLoadBalancingPolicyTest {
+
+  private static final String LOCAL_DC = "dc1";
+  private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private TestPolicy policy;
+  private Session session;
+  private Node slow;
+  private Node fast1;
+  private Node fast2;
+
+  @Before
+  public void setup() {
+    InternalDriverContext context = mock(InternalDriverContext.class);
+    DriverConfig config = mock(DriverConfig.class);
+    // no option is defined, so the policy gets the defaults it passes to getXxx(option, default)
+    DriverExecutionProfile profile =
+        mock(DriverExecutionProfile.class, withSettings().defaultAnswer(CALLS_REAL_METHODS));
+    ConsistencyLevelRegistry consistencyLevels = mock(ConsistencyLevelRegistry.class);
+    when(context.getConfig()).thenReturn(config);
+    when(config.getProfile(anyString())).thenReturn(profile);
+    when(context.getSessionName()).thenReturn("test");
+    when(context.getConsistencyLevelRegistry()).thenReturn(consistencyLevels);
+    when(consistencyLevels.nameToLevel(any())).thenReturn(ConsistencyLevel.LOCAL_ONE);
+    when(context.getRequestTracker()).thenReturn(new MultiplexingRequestTracker());
+    when(context.getEventBus()).thenReturn(new EventBus("test"));
+    session = mock(Session.class);
+
+    slow = newNode();
+    fast1 = newNode();
+    fast2 = newNode();
+    Map<UUID, Node> nodes = new LinkedHashMap<>();
+    Set<Node> replicas = new LinkedHashSet<>();
+    for (Node node : new Node[] {slow, fast1, fast2}) {
+      nodes.put(node.getHostId(), node);
+      replicas.add(node);
+    }
+    policy = new TestPolicy(context, replicas);
+    policy.init(nodes, (node, distance) -> {});
+  }
+
+  @Test
+  public void should_move_a_slow_replica_to_the_back() {
+    respond(20 * MILLISECOND, 10);
+
+    assertTrue(policy.isUnhealthy(slow, policy.now));
+    for (int i = 0; i < 20; i++) {
+      assertEquals(slow, replicasOf(policy.newQueryPlan(null, session))[2]);
+    }
+  }
+
+  @Test
+  public void should_give_requests_again_to_a_slow_replica_once_its_stats_have_decayed() {
+    respond(20 * MILLISECOND, 10);
+    assertTrue(policy.isUnhealthy(slow, policy.now));
+
+    // the slow replica gets no requests anymore, so its latency is only updated by the decay:
+    // after 4 half-lives, it is less than 3 times the latency of its peers
+    respondFast(4 * SECOND);
+
+    assertFalse(policy.isUnhealthy(slow, policy.now));
+    boolean notLast = false;
+    for (int i = 0; i < 50 && !notLast; i++) {
+      notLast = replicasOf(policy.newQueryPlan(null, session))[2] != slow;
+    }
+    assertTrue(notLast);
+  }
+
+  @Test
+  public void should_keep_a_recovered_replica_in_front() {
+    respond(20 * MILLISECOND, 10);
+    respondFast(4 * SECOND);
+
+    // the first responses after the decay are fast
+    respond(MILLISECOND, 10);
+
+    assertFalse(policy.isUnhealthy(slow, policy.now));
+  }
+
+  @Test
+  public void should_move_a_replica_still_slow_after_the_decay_to_the_back_again() {
+    respond(5 * MILLISECOND, 10);
+    assertTrue(policy.isUnhealthy(slow, policy.now));
+    respondFast(3 * SECOND);
+    assertFalse(policy.isUnhealthy(slow, policy.now));
+
+    // the average only exceeds the threshold again after a few slow responses
+    respond(5 * MILLISECOND, 10);
+
+    assertTrue(policy.isUnhealthy(slow, policy.now));
+  }
+
+  @Test
+  public void should_not_move_replicas_that_respond_sparsely_to_the_back() {
+    // each replica responds every 2 half-lives, all with the same latency
+    Node[] replicas = {slow, fast1, fast2};
+    for (int round = 0; round < 10; round++) {
+      for (Node node : replicas) {
+        policy.onNodeSuccess(null, 10 * MILLISECOND, null, node, "");
+        policy.now += 700 * MILLISECOND;
+        assertFalse(policy.isUnhealthy(node, policy.now));
+        for (int i = 0; i < replicas.length && round > 0; i++) {
+          // an idle replica keeps the latency of its peers, instead of looking faster
+          assertEquals(10 * MILLISECOND, policy.getLatencyNanos(replicas[i], policy.now));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void should_count_a_statement_in_flight_until_its_response() {
+    SimpleStatement statement = SimpleStatement.newInstance("SELECT * FROM ks.t WHERE k = 1");
+    Node node = policy.newQueryPlan(statement, session).poll();
+    assertEquals(1, policy.getInFlight(node));
+
+    policy.onNodeSuccess(statement, MILLISECOND, null, node, "");
+
+    assertEquals(0, policy.getInFlight(node));
+  }
+
+  @Test
+  public void should_not_count_requests_whose_responses_are_not_tracked() {
+    // the driver does not report the responses to preparations and control queries to the tracker
+    Queue<Node> prepare =
+        policy.newQueryPlan(new DefaultPrepareRequest("SELECT * FROM ks.t WHERE k = ?"), session);
+    Queue<Node> control = policy.newQueryPlan(null, session);
+    while (prepare.poll() != null || control.poll() != null) {}
+
+    for (Node node : new Node[] {slow, fast1, fast2}) {
+      assertEquals(0, policy.getInFlight(node));
+    }
+  }
+
+  /** All replicas respond, the slow one with the given latency: one round per millisecond. */
+  private void respond(long slowLatencyNanos, int rounds) {
+    for (int i = 0; i < rounds; i++) {
+      policy.onNodeSuccess(null, slowLatencyNanos, null, slow, "");
+      policy.onNodeSuccess(null, MILLISECOND, null, fast1, "");
+      policy.onNodeSuccess(null, MILLISECOND, null, fast2, "");
+      policy.now += MILLISECOND;
+    }
+    // the median latency of the peers is only recomputed once per refresh interval
+    policy.now += 100 * MILLISECOND;
+  }
+
+  /** Only the fast replicas respond during that time: one round every 10 milliseconds. */
+  private void respondFast(long durationNanos) {
+    for (long elapsed = 0; elapsed < durationNanos; elapsed += 10 * MILLISECOND) {
+      policy.onNodeSuccess(null, MILLISECOND, null, fast1, "");
+      policy.onNodeSuccess(null, MILLISECOND, null, fast2, "");
+      policy.now += 10 * MILLISECOND;
+    }
+  }
+
+  private static Node[] replicasOf(Queue<Node> plan) {
+    return plan.toArray(new Node[0]);
+  }
+
+  private static Node newNode() {
+    Node node = mock(Node.class);
+    when(node.getHostId()).thenReturn(UUID.randomUUID());
+    when(node.getDatacenter()).thenReturn(LOCAL_DC);
+    when(node.getState()).thenReturn(NodeState.UP);
+    return node;
+  }
+
+  /** The policy, with fixed replicas and a manual clock. */
+  static class TestPolicy extends CustomLoadBalancingPolicy {
+
+    private final Set<Node> replicas;
+    long now;
+
+    TestPolicy(InternalDriverContext context, Set<Node> replicas) {
+      super(context, "default");
+      this.replicas = replicas;
+    }
+
+    @Override
+    protected long nanoTime() {
+      return now;
+    }
+
+    @NonNull
+    @Override
+    protected Optional<String> discoverLocalDc(@NonNull Map<UUID, Node> nodes) {
+      return Optional.of(LOCAL_DC);
+    }
+
+    @NonNull
+    @Override
+    protected Predicate<Node> createNodeFilter(
+        @Nullable String localDc, @NonNull Map<UUID, Node> nodes) {
+      return node -> true;
+    }
+
+    @NonNull
+    @Override
+    protected Set<Node> getReplicas(@Nullable Request request, @Nullable Session session) {
+      return replicas;
+    }
+  }
+}